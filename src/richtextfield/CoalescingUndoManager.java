@@ -0,0 +1,1029 @@
+package richtextfield;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.DocumentFilter;
+import javax.swing.text.Element;
+import javax.swing.text.MutableAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+import richtextfield.io.UndoSpillFile;
+import richtextfield.utils.CustomLogger;
+
+/**
+ * UndoManager that records typing by words or sentences instead of by
+ * characters. Consecutive single character insertions, or deletions, at
+ * adjacent offsets are merged into one edit until a pause longer than the
+ * coalesce time, a jump of the caret or the start of the next word or
+ * sentence. The edits made between beginCompoundEdit and endCompoundEdit are
+ * undone as one, which is how the toolbar actions are recorded.
+ * <p>
+ * The history is also bounded by the bytes its edits retain (text, and
+ * attribute values such as the data: URIs of images), estimated when they are
+ * added. Once the history outgrows its budget, the large attribute values of
+ * the elements its edits keep out of the document, the ones they removed or
+ * the ones they inserted and were undone, are moved to a temporary file,
+ * oldest edits first, and put back before an edit returns those elements to
+ * the document. The edits keep their elements and their text, so the edits
+ * around them are undone and redone as usual. Only then are the oldest edits
+ * discarded.
+ * <p>
+ * The edits of a document are measured by a document listener, and the
+ * attributes of its elements are only changed under its write lock, which the
+ * manager takes through a document filter, so the documents are attached with
+ * attach instead of adding the manager as an UndoableEditListener. An edit
+ * whose values can not be put back, e.g. because the filter was replaced,
+ * can not be undone or redone.
+ */
+// Holds listeners and a temporary file, it is never serialized.
+@SuppressWarnings("serial")
+public class CoalescingUndoManager extends UndoManager {
+
+    public static final long DEFAULT_COALESCE_MILLIS = 1000;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_SPILL_THRESHOLD = 256 * 1024;
+
+    // Rough cost of an edit and of an attribute, besides their text.
+    private static final long EDIT_BYTES = 128;
+    private static final long ATTRIBUTE_BYTES = 48;
+
+    public enum Grouping {
+        WORD, SENTENCE
+    }
+
+    private Grouping grouping = Grouping.WORD;
+    private long coalesceMillis = DEFAULT_COALESCE_MILLIS;
+
+    // The last typing edit, while more characters can be added to it.
+    private TypingEdit typing;
+    private CompoundEdit compound;
+    private long compoundBytes;
+    private List<DocumentEvent.ElementChange> compoundChanges;
+    private boolean compoundOpaque;
+    private int compoundDepth = 0;
+
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long spillThreshold = DEFAULT_SPILL_THRESHOLD;
+    // The largest spill threshold since the history was last empty. The edits
+    // that are not spillable never refer to a value this large.
+    private long valueThreshold = DEFAULT_SPILL_THRESHOLD;
+    private final Map<UndoableEdit, Long> retained = new IdentityHashMap<>();
+    private long retainedBytes = 0;
+    private final UndoSpillFile spillFile = new UndoSpillFile();
+    // The detached elements whose large values are in the spill file.
+    private final Map<Element, SpilledValues> spilledElements = new IdentityHashMap<>();
+    private final DocumentListener documentListener = new ChangeMeter();
+    // The task the filter runs under the write lock of its document.
+    private final ThreadLocal<Runnable> lockedTask = new ThreadLocal<>();
+    // The last change measured by the document listener, until its edit arrives.
+    private Change lastChange;
+
+    public synchronized Grouping getGrouping() {
+        return grouping;
+    }
+
+    public synchronized void setGrouping(Grouping grouping) {
+        this.grouping = grouping;
+        endTyping();
+    }
+
+    public synchronized long getCoalesceMillis() {
+        return coalesceMillis;
+    }
+
+    /**
+     * @param coalesceMillis pause after which typing starts a new edit
+     */
+    public synchronized void setCoalesceMillis(long coalesceMillis) {
+        this.coalesceMillis = coalesceMillis;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes estimated bytes the history may retain in memory. The
+     * last edit is kept even when it is larger.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimForBytes();
+    }
+
+    public synchronized long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * @param spillThreshold estimated bytes from which the values of an edit
+     * can be moved to the spill file, and from which a value is moved
+     */
+    public synchronized void setSpillThreshold(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+        valueThreshold = edits.isEmpty() ? spillThreshold : Math.max(valueThreshold, spillThreshold);
+    }
+
+    /**
+     * @return estimated bytes retained in memory by the edits of the history
+     */
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * @return bytes of the attribute values kept in the spill file
+     */
+    public long getSpilledBytes() {
+        return spillFile.getBytes();
+    }
+
+    /**
+     * @return edits whose elements out of the document keep their large
+     * values in the spill file
+     */
+    public synchronized int getSpilledEdits() {
+        int spilled = 0;
+        for (UndoableEdit edit : edits) {
+            if (edit instanceof SpillableEdit spillable && spillable.isSpilled()) {
+                spilled++;
+            }
+        }
+        return spilled;
+    }
+
+    /**
+     * Starts recording the edits of the document. The manager sets a filter
+     * on the document to lock it, which passes the edits on to the filter the
+     * document had. Values are only moved to the spill file while that filter
+     * is the filter of the document: once another filter is set, the values
+     * of the new edits stay in memory, and the values already moved can only
+     * be put back when detach sets the filter of the manager back.
+     *
+     * @param doc
+     */
+    public void attach(Document doc) {
+        doc.addDocumentListener(documentListener);
+        doc.addUndoableEditListener(this);
+        if (doc instanceof AbstractDocument abstractDoc && !isLockFilter(abstractDoc.getDocumentFilter())) {
+            abstractDoc.setDocumentFilter(new LockFilter(abstractDoc.getDocumentFilter()));
+        }
+    }
+
+    /**
+     * Stops recording the edits of the document and puts back the values
+     * moved out of its elements.
+     *
+     * @param doc
+     */
+    public void detach(Document doc) {
+        doc.removeUndoableEditListener(this);
+        doc.removeDocumentListener(documentListener);
+        if (doc instanceof AbstractDocument abstractDoc && isLockFilter(abstractDoc.getDocumentFilter())) {
+            restoreAll(doc);
+            abstractDoc.setDocumentFilter(((LockFilter) abstractDoc.getDocumentFilter()).next);
+        }
+    }
+
+    /**
+     * Starts recording the following edits as a single one. The calls can be
+     * nested, the edit is added by the outermost endCompoundEdit.
+     */
+    public synchronized void beginCompoundEdit() {
+        if (compoundDepth++ == 0) {
+            endTyping();
+            compound = new CompoundEdit();
+            compoundBytes = 0;
+            compoundChanges = new ArrayList<>();
+            compoundOpaque = false;
+        }
+    }
+
+    public synchronized void endCompoundEdit() {
+        if (compoundDepth == 0 || --compoundDepth > 0) {
+            return;
+        }
+        CompoundEdit edit = compound;
+        compound = null;
+        edit.end();
+        UndoableEdit added = edit;
+        if (compoundOpaque || !compoundChanges.isEmpty()) {
+            added = new SpillableEdit(edit, List.copyOf(compoundChanges), compoundOpaque);
+        }
+        compoundChanges = null;
+        if (added.isSignificant() && super.addEdit(added)) {
+            track(added, compoundBytes);
+            trimForBytes();
+        }
+    }
+
+    /**
+     * Closes the typing edit in progress, the next character starts a new one.
+     */
+    public synchronized void endTyping() {
+        if (typing != null) {
+            typing.end();
+            typing = null;
+        }
+    }
+
+    @Override
+    public synchronized boolean addEdit(UndoableEdit anEdit) {
+        Change change = lastChange;
+        lastChange = null;
+        if (change != null && !change.matches(anEdit)) {
+            change = null;
+        }
+        long bytes = change != null ? change.bytes() : EDIT_BYTES;
+        List<DocumentEvent.ElementChange> changes = change != null ? change.changes() : List.of();
+        // The elements changed by a batch, or by an edit that was not measured, are unknown.
+        boolean opaque = anEdit instanceof DocumentEvent
+                && (change == null || !(anEdit instanceof AbstractDocument.DefaultDocumentEvent));
+        if (compound != null) {
+            compoundBytes += bytes;
+            compoundChanges.addAll(changes);
+            compoundOpaque |= opaque;
+            return compound.addEdit(anEdit);
+        }
+        long now = System.currentTimeMillis();
+        Typed typed = bytes < spillThreshold && !opaque ? Typed.of(anEdit) : null;
+        if (typed != null && typing != null && editToBeUndone() == typing && typing.accepts(typed, now)) {
+            typing.add(anEdit, typed, now);
+            track(typing, bytes);
+            trimForBytes();
+            return true;
+        }
+        endTyping();
+        UndoableEdit added = anEdit;
+        if (typed != null) {
+            typing = new TypingEdit();
+            typing.add(anEdit, typed, now);
+            added = typing;
+        } else if (opaque || !changes.isEmpty()) {
+            added = new SpillableEdit(anEdit, changes, opaque);
+        }
+        if (!super.addEdit(added)) {
+            return false;
+        }
+        track(added, bytes);
+        trimForBytes();
+        return true;
+    }
+
+    @Override
+    public synchronized void discardAllEdits() {
+        endTyping();
+        super.discardAllEdits();
+        retained.clear();
+        retainedBytes = 0;
+        // No edit can return the spilled elements to their documents.
+        spilledElements.clear();
+        spillFile.close();
+        valueThreshold = spillThreshold;
+    }
+
+    /*
+     * Not synchronized: UndoManager locks the document of a document edit
+     * before the manager, in the order the document adds its edits.
+     */
+    @Override
+    public void undo() {
+        synchronized (this) {
+            endTyping();
+            UndoableEdit edit = editToBeUndone();
+            // UndoManager undoes the edits after it that are still done, then the edit.
+            if (edit != null && !restoreValues(edits.indexOf(edit), edits.size(), true)) {
+                throw new CannotUndoException();
+            }
+        }
+        super.undo();
+    }
+
+    @Override
+    public void redo() {
+        synchronized (this) {
+            endTyping();
+            UndoableEdit edit = editToBeRedone();
+            if (edit != null && !restoreValues(0, edits.indexOf(edit) + 1, false)) {
+                throw new CannotRedoException();
+            }
+        }
+        super.redo();
+    }
+
+    @Override
+    public void undoOrRedo() {
+        boolean undo;
+        synchronized (this) {
+            undo = editToBeRedone() == null;
+        }
+        if (undo) {
+            undo();
+        } else {
+            redo();
+        }
+    }
+
+    @Override
+    protected void trimEdits(int from, int to) {
+        for (int i = from; i <= to; i++) {
+            UndoableEdit edit = edits.get(i);
+            Long bytes = retained.remove(edit);
+            if (bytes != null) {
+                retainedBytes -= bytes;
+            }
+            if (edit == typing) {
+                typing = null;
+            }
+        }
+        super.trimEdits(from, to);
+        if (from <= to) {
+            releaseSpilled();
+        }
+    }
+
+    private void track(UndoableEdit edit, long bytes) {
+        retained.merge(edit, bytes, Long::sum);
+        retainedBytes += bytes;
+    }
+
+    /*
+     * Moves the large values of the spillable edits to the spill file, oldest
+     * first, and then discards the oldest edits until the history is within
+     * its budget.
+     */
+    private void trimForBytes() {
+        for (int i = 0; i < edits.size() && retainedBytes > maxBytes; i++) {
+            if (edits.get(i) instanceof SpillableEdit edit && !edit.isSpilled()) {
+                long bytes = retained.getOrDefault(edit, 0L);
+                long left = Math.max(EDIT_BYTES, bytes - edit.spill());
+                retainedBytes += left - bytes;
+                retained.put(edit, left);
+            }
+        }
+        int discard = 0;
+        for (long bytes = retainedBytes; discard < edits.size() - 1 && bytes > maxBytes; discard++) {
+            bytes -= retained.getOrDefault(edits.get(discard), 0L);
+        }
+        trimEdits(0, discard - 1);
+    }
+
+    /*
+     * Moves the large values of the elements out of the documents to the spill
+     * file.
+     */
+    private synchronized void spillDetached(List<DocumentEvent.ElementChange> changes) {
+        for (Element elem : detachedElements(changes)) {
+            spill(elem);
+        }
+    }
+
+    private void spill(Element elem) {
+        if (spilledElements.containsKey(elem) || !(elem instanceof MutableAttributeSet attrs)) {
+            return;
+        }
+        List<Object> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        long bytes = 0;
+        for (Enumeration<?> e = attrs.getAttributeNames(); e.hasMoreElements();) {
+            Object name = e.nextElement();
+            if (attrs.getAttribute(name) instanceof String value && 2L * value.length() >= valueThreshold) {
+                names.add(name);
+                values.add(value);
+                bytes += 2L * value.length();
+            }
+        }
+        if (names.isEmpty()) {
+            return;
+        }
+        UndoSpillFile.Entry entry;
+        try {
+            entry = spillFile.write(values);
+        } catch (IOException e) {
+            log("Error al guardar una edición en el fichero temporal del historial de deshacer", e);
+            return;
+        }
+        boolean locked = runLocked(elem.getDocument(), () -> {
+            for (Object name : names) {
+                attrs.addAttribute(name, "");
+            }
+        });
+        if (!locked) {
+            spillFile.free(entry);
+            return;
+        }
+        spilledElements.put(elem, new SpilledValues(names, entry, bytes));
+    }
+
+    /*
+     * Bytes of the values of the elements of the changes that are in the spill
+     * file, counted as estimate counts their attributes.
+     */
+    private synchronized long spilledBytes(List<DocumentEvent.ElementChange> changes) {
+        long bytes = 0;
+        for (Element elem : changedElements(changes)) {
+            SpilledValues spilled = spilledElements.get(elem);
+            if (spilled != null) {
+                bytes += spilled.bytes();
+            }
+        }
+        return bytes;
+    }
+
+    /*
+     * Puts back the values the edits between from and to that are about to be
+     * undone or redone need, before UndoManager starts with the first of them:
+     * an edit that throws leaves its index past the edit. False when some
+     * values stay in the spill file.
+     */
+    private boolean restoreValues(int from, int to, boolean undo) {
+        for (int i = from; i < to; i++) {
+            if (edits.get(i) instanceof SpillableEdit spillable
+                    && (undo ? spillable.canUndo() : spillable.canRedo()) && !spillable.restore()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Puts back the values of the spilled elements out of the documents. False
+     * when some of them stay in the spill file.
+     */
+    private synchronized boolean restoreDetached(List<DocumentEvent.ElementChange> changes) {
+        if (spilledElements.isEmpty()) {
+            return true;
+        }
+        boolean restored = true;
+        for (Element elem : detachedElements(changes)) {
+            restored &= restore(elem);
+        }
+        return restored;
+    }
+
+    /*
+     * Puts back the values of the spilled elements of the document, of every
+     * document when null. False when some of them stay in the spill file.
+     */
+    private synchronized boolean restoreAll(Document doc) {
+        boolean restored = true;
+        for (Element elem : List.copyOf(spilledElements.keySet())) {
+            if (doc == null || elem.getDocument() == doc) {
+                restored &= restore(elem);
+            }
+        }
+        return restored;
+    }
+
+    /*
+     * The entry is only freed once its values are back in the element,
+     * otherwise they stay registered for the next attempt.
+     */
+    private boolean restore(Element elem) {
+        SpilledValues spilled = spilledElements.get(elem);
+        if (spilled == null) {
+            return true;
+        }
+        List<String> values;
+        try {
+            values = spillFile.read(spilled.entry());
+        } catch (IOException e) {
+            log("Error al recuperar una edición del fichero temporal del historial de deshacer", e);
+            return false;
+        }
+        MutableAttributeSet attrs = (MutableAttributeSet) elem;
+        boolean locked = runLocked(elem.getDocument(), () -> {
+            for (int i = 0; i < values.size(); i++) {
+                attrs.addAttribute(spilled.names().get(i), values.get(i));
+            }
+        });
+        if (!locked) {
+            log("No se puede bloquear el documento para recuperar una edición del historial de deshacer", null);
+            return false;
+        }
+        spilledElements.remove(elem);
+        spillFile.free(spilled.entry());
+        return true;
+    }
+
+    /*
+     * Frees the values of the spilled elements that no edit of the history
+     * can return to the document.
+     */
+    private void releaseSpilled() {
+        if (spilledElements.isEmpty()) {
+            return;
+        }
+        Set<Element> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (UndoableEdit edit : edits) {
+            if (edit instanceof SpillableEdit spillable) {
+                if (spillable.opaque) {
+                    return;
+                }
+                reachable.addAll(changedElements(spillable.changes));
+            }
+        }
+        for (var it = spilledElements.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Element, SpilledValues> spilled = it.next();
+            if (!reachable.contains(spilled.getKey())) {
+                spillFile.free(spilled.getValue().entry());
+                it.remove();
+            }
+        }
+    }
+
+    /*
+     * Runs the task under the write lock of the document, which only the
+     * document takes: removing nothing locks it and calls its filter. False
+     * when the filter of the document is not the one set by attach.
+     */
+    private boolean runLocked(Document doc, Runnable task) {
+        if (!(doc instanceof AbstractDocument abstractDoc) || !isLockFilter(abstractDoc.getDocumentFilter())) {
+            return false;
+        }
+        Runnable previous = lockedTask.get();
+        lockedTask.set(task);
+        try {
+            doc.remove(0, 0);
+            return true;
+        } catch (BadLocationException e) {
+            return false;
+        } finally {
+            lockedTask.set(previous);
+        }
+    }
+
+    /*
+     * The elements added or removed by the changes, and their descendants.
+     */
+    private static Set<Element> changedElements(List<DocumentEvent.ElementChange> changes) {
+        Set<Element> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (DocumentEvent.ElementChange change : changes) {
+            addTrees(change.getChildrenAdded(), changed);
+            addTrees(change.getChildrenRemoved(), changed);
+        }
+        return changed;
+    }
+
+    /*
+     * The elements added or removed by the changes, and their descendants,
+     * that are out of the document.
+     */
+    private static Set<Element> detachedElements(List<DocumentEvent.ElementChange> changes) {
+        Set<Element> detached = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (DocumentEvent.ElementChange change : changes) {
+            for (Element elem : change.getChildrenAdded()) {
+                if (!isAttached(elem)) {
+                    addTree(elem, detached);
+                }
+            }
+            for (Element elem : change.getChildrenRemoved()) {
+                if (!isAttached(elem)) {
+                    addTree(elem, detached);
+                }
+            }
+        }
+        return detached;
+    }
+
+    /*
+     * Removed elements keep their parent, only the parent no longer has them
+     * as children.
+     */
+    private static boolean isAttached(Element elem) {
+        for (Element child = elem;;) {
+            Element parent = child.getParentElement();
+            if (parent == null) {
+                return child == child.getDocument().getDefaultRootElement();
+            }
+            if (!isChild(parent, child)) {
+                return false;
+            }
+            child = parent;
+        }
+    }
+
+    private static boolean isChild(Element parent, Element child) {
+        for (int i = 0; i < parent.getElementCount(); i++) {
+            if (parent.getElement(i) == child) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addTrees(Element[] elems, Set<Element> tree) {
+        for (Element elem : elems) {
+            addTree(elem, tree);
+        }
+    }
+
+    private static void addTree(Element elem, Set<Element> tree) {
+        tree.add(elem);
+        for (int i = 0; i < elem.getElementCount(); i++) {
+            addTree(elem.getElement(i), tree);
+        }
+    }
+
+    /*
+     * Bytes referenced by the edit of a change: the text it inserted or removed
+     * and the attributes of the elements it added or removed, whose changes
+     * are collected. The edits given to undo listeners do not tell their
+     * element changes, only the events given to document listeners do.
+     */
+    private static long estimate(DocumentEvent e, List<DocumentEvent.ElementChange> changes) {
+        Element root = e.getDocument().getDefaultRootElement();
+        if (e.getType() == DocumentEvent.EventType.CHANGE) {
+            // The old and new attributes of every leaf in the range.
+            long bytes = EDIT_BYTES + 2 * leafBytes(e.getDocument(), e.getOffset(), e.getLength(), Long.MAX_VALUE);
+            if (e instanceof AbstractDocument.DefaultDocumentEvent) {
+                // The leaves split at the ends of the range. A batch replaces every child of the root instead.
+                collectChanges(e, root, e.getOffset(), e.getOffset() + e.getLength(), changes);
+                bytes += elementBytes(changes);
+            }
+            return bytes;
+        }
+        int start = Math.max(0, e.getOffset() - 1);
+        int end = e.getType() == DocumentEvent.EventType.REMOVE ? e.getOffset() + 1 : e.getOffset() + e.getLength() + 1;
+        collectChanges(e, root, start, end, changes);
+        return EDIT_BYTES + 2L * e.getLength() + elementBytes(changes);
+    }
+
+    private static void collectChanges(DocumentEvent e, Element elem, int start, int end, List<DocumentEvent.ElementChange> changes) {
+        DocumentEvent.ElementChange change = e.getChange(elem);
+        if (change != null) {
+            changes.add(change);
+        }
+        if (!elem.isLeaf() && elem.getElementCount() > 0) {
+            int last = elem.getElementIndex(end);
+            for (int i = elem.getElementIndex(start); i <= last; i++) {
+                Element child = elem.getElement(i);
+                if (!child.isLeaf()) {
+                    collectChanges(e, child, start, end, changes);
+                }
+            }
+        }
+    }
+
+    /*
+     * Attribute bytes of the elements added or removed by the changes and of
+     * their descendants. An element added to a new branch is in both trees,
+     * it is counted once.
+     */
+    private static long elementBytes(List<DocumentEvent.ElementChange> changes) {
+        long bytes = 0;
+        for (Element elem : changedElements(changes)) {
+            bytes += attributeBytes(elem.getAttributes());
+        }
+        return bytes;
+    }
+
+    private static long attributeBytes(AttributeSet attrs) {
+        long bytes = 0;
+        for (Enumeration<?> names = attrs.getAttributeNames(); names.hasMoreElements();) {
+            Object name = names.nextElement();
+            if (name == StyleConstants.ResolveAttribute) {
+                continue;
+            }
+            bytes += ATTRIBUTE_BYTES;
+            if (attrs.getAttribute(name) instanceof String value) {
+                bytes += 2L * value.length();
+            }
+        }
+        return bytes;
+    }
+
+    /*
+     * Attribute bytes of the leaves between offset and offset + length, stops
+     * counting once limit is reached.
+     */
+    private static long leafBytes(Document doc, int offset, int length, long limit) {
+        if (!(doc instanceof HTMLDocument html)) {
+            return 0;
+        }
+        long bytes = 0;
+        int end = offset + length;
+        for (int pos = offset; pos < end && bytes < limit;) {
+            Element leaf = html.getCharacterElement(pos);
+            bytes += attributeBytes(leaf.getAttributes());
+            pos = Math.max(pos + 1, leaf.getEndOffset());
+        }
+        return bytes;
+    }
+
+    private static void log(String msg, Throwable t) {
+        CustomLogger.print(CoalescingUndoManager.class, Level.WARNING, msg, t);
+    }
+
+    /*
+     * A character inserted or removed by a document edit.
+     */
+    private record Typed(DocumentEvent.EventType type, int offset, char c) {
+
+        static Typed of(UndoableEdit edit) {
+            if (!(edit instanceof DocumentEvent event) || event.getLength() != 1) {
+                return null;
+            }
+            if (event.getType() == DocumentEvent.EventType.REMOVE) {
+                return new Typed(DocumentEvent.EventType.REMOVE, event.getOffset(), '\0');
+            }
+            if (event.getType() != DocumentEvent.EventType.INSERT) {
+                return null;
+            }
+            try {
+                // The edit is delivered while the document still holds the character.
+                return new Typed(DocumentEvent.EventType.INSERT, event.getOffset(),
+                        event.getDocument().getText(event.getOffset(), 1).charAt(0));
+            } catch (BadLocationException e) {
+                return null;
+            }
+        }
+
+        boolean isSeparator() {
+            return Character.isWhitespace(c) || c == '\n';
+        }
+
+        boolean isSentenceEnd() {
+            return c == '.' || c == '!' || c == '?' || c == '\n';
+        }
+    }
+
+    /*
+     * The characters typed or deleted in a row. It stays in progress, and
+     * undoable, while characters can be added to it.
+     */
+    @SuppressWarnings("serial")
+    private class TypingEdit extends CompoundEdit {
+
+        private Typed last;
+        private long lastMillis;
+        private boolean separated = false;
+
+        boolean accepts(Typed typed, long now) {
+            if (!isInProgress() || typed.type() != last.type() || now - lastMillis > coalesceMillis) {
+                return false;
+            }
+            if (typed.type() == DocumentEvent.EventType.REMOVE) {
+                // Backspace goes back one offset, delete stays.
+                return typed.offset() == last.offset() - 1 || typed.offset() == last.offset();
+            }
+            if (typed.offset() != last.offset() + 1) {
+                return false;
+            }
+            // A new word or sentence starts with the first character after its separators.
+            return typed.isSeparator() || !separated;
+        }
+
+        void add(UndoableEdit edit, Typed typed, long now) {
+            super.addEdit(edit);
+            if (typed.type() == DocumentEvent.EventType.INSERT && !separated) {
+                separated = grouping == Grouping.WORD ? typed.isSeparator() : typed.isSentenceEnd();
+            }
+            last = typed;
+            lastMillis = now;
+        }
+
+        @Override
+        public boolean canUndo() {
+            return isInProgress() ? !edits.isEmpty() : super.canUndo();
+        }
+
+        @Override
+        public void undo() {
+            if (isInProgress()) {
+                end();
+            }
+            super.undo();
+        }
+
+        @Override
+        public boolean addEdit(UndoableEdit anEdit) {
+            // Only add() extends it.
+            return false;
+        }
+    }
+
+    /*
+     * An edit that adds or removes elements with large values, or whose
+     * elements are unknown. Once spilled, the large values of its elements out
+     * of the document are in the spill file, and are put back before it is
+     * undone or redone. An edit whose elements are unknown puts back the
+     * values of every spilled element instead, and is never spilled.
+     */
+    @SuppressWarnings("serial")
+    private class SpillableEdit extends AbstractUndoableEdit {
+
+        private final UndoableEdit edit;
+        private final List<DocumentEvent.ElementChange> changes;
+        private final boolean opaque;
+        private boolean spilled = false;
+
+        SpillableEdit(UndoableEdit edit, List<DocumentEvent.ElementChange> changes, boolean opaque) {
+            this.edit = edit;
+            this.changes = changes;
+            this.opaque = opaque;
+        }
+
+        boolean isSpilled() {
+            return spilled;
+        }
+
+        /*
+         * @return bytes of its values in the spill file
+         */
+        long spill() {
+            if (opaque) {
+                return 0;
+            }
+            spilled = true;
+            spillDetached(changes);
+            return spilledBytes(changes);
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            // Checked first, so an edit that can not restore its values is left as it is.
+            if (!canUndo() || !restore()) {
+                throw new CannotUndoException();
+            }
+            super.undo();
+            edit.undo();
+            respill();
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            if (!canRedo() || !restore()) {
+                throw new CannotRedoException();
+            }
+            super.redo();
+            edit.redo();
+            respill();
+        }
+
+        private boolean restore() {
+            return opaque ? restoreAll(null) : restoreDetached(changes);
+        }
+
+        /*
+         * The elements the edit took out of the document are now the other
+         * ones. The elements of the other spilled edits may have left the
+         * document too.
+         */
+        private void respill() {
+            if (spilled) {
+                spillDetached(changes);
+            } else if (opaque) {
+                synchronized (CoalescingUndoManager.this) {
+                    for (UndoableEdit other : edits) {
+                        if (other instanceof SpillableEdit spillable && spillable.isSpilled()) {
+                            spillDetached(spillable.changes);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void die() {
+            super.die();
+            edit.die();
+        }
+
+        @Override
+        public boolean isSignificant() {
+            return edit.isSignificant();
+        }
+
+        @Override
+        public String getPresentationName() {
+            return edit.getPresentationName();
+        }
+    }
+
+    /*
+     * The names of the values moved out of an element, in the order they are
+     * stored in the entry, and the bytes the values took in memory.
+     */
+    private record SpilledValues(List<Object> names, UndoSpillFile.Entry entry, long bytes) {
+    }
+
+    /*
+     * What the document listener measured of a change, matched with its edit
+     * by type and range. The element changes are only kept for edits from the
+     * spill threshold.
+     */
+    private record Change(Document document, DocumentEvent.EventType type, int offset, int length, long bytes,
+            List<DocumentEvent.ElementChange> changes) {
+
+        boolean matches(UndoableEdit edit) {
+            return edit instanceof DocumentEvent e && e.getDocument() == document && e.getType() == type
+                    && e.getOffset() == offset && e.getLength() == length;
+        }
+    }
+
+    private class ChangeMeter implements DocumentListener {
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            measure(e);
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            measure(e);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            measure(e);
+        }
+    }
+
+    /*
+     * Document listeners are notified before the undo listeners, under the
+     * write lock of the document.
+     */
+    private synchronized void measure(DocumentEvent e) {
+        List<DocumentEvent.ElementChange> changes = new ArrayList<>();
+        long bytes = estimate(e, changes);
+        lastChange = new Change(e.getDocument(), e.getType(), e.getOffset(), e.getLength(), bytes,
+                bytes >= spillThreshold ? List.copyOf(changes) : List.of());
+    }
+
+    private boolean isLockFilter(DocumentFilter filter) {
+        return filter instanceof LockFilter lockFilter && lockFilter.owner() == this;
+    }
+
+    /*
+     * Runs the task of runLocked when nothing is removed. The attributes of
+     * elements can only be changed under the write lock, which remove takes
+     * before calling the filter. The edits go on to the filter the document
+     * had when it was attached.
+     */
+    private class LockFilter extends DocumentFilter {
+
+        private final DocumentFilter next;
+
+        LockFilter(DocumentFilter next) {
+            this.next = next;
+        }
+
+        CoalescingUndoManager owner() {
+            return CoalescingUndoManager.this;
+        }
+
+        @Override
+        public void remove(FilterBypass fb, int offset, int length) throws BadLocationException {
+            Runnable task = lockedTask.get();
+            if (length == 0 && task != null) {
+                // The task may edit the document itself.
+                lockedTask.remove();
+                task.run();
+                return;
+            }
+            if (next != null) {
+                next.remove(fb, offset, length);
+            } else {
+                super.remove(fb, offset, length);
+            }
+        }
+
+        @Override
+        public void insertString(FilterBypass fb, int offset, String string, AttributeSet attr) throws BadLocationException {
+            if (next != null) {
+                next.insertString(fb, offset, string, attr);
+            } else {
+                super.insertString(fb, offset, string, attr);
+            }
+        }
+
+        @Override
+        public void replace(FilterBypass fb, int offset, int length, String text, AttributeSet attrs) throws BadLocationException {
+            if (next != null) {
+                next.replace(fb, offset, length, text, attrs);
+            } else {
+                super.replace(fb, offset, length, text, attrs);
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package richtextfield;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.event.UndoableEditListener;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.DocumentFilter;
+import javax.swing.text.Element;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.CompoundEdit;
+
+/**
+ * Edits a document as a single change. The listeners of the document are
+ * removed while the edits run, so views, carets, undo managers and journals do
+ * not process every insertion and removal. Once the edits are done they get a
+ * single event of type CHANGE covering the changed range, whose element change
+ * on the root makes the views of the children of the root in that range
+ * rebuild, and the undo listeners a single edit holding all the edits. Undoing
+ * and redoing that edit notify the listeners the same way.
+ * <p>
+ * The edits run under the write lock of the document, so other threads never
+ * read the document halfway through them. The lock is taken by removing
+ * nothing through a document filter set for the duration of the batch, which
+ * passes the edits on to the filter the document had.
+ * <p>
+ * Must be called from the thread that edits the document, the event dispatch
+ * thread for a document shown by a text component. Carets are not moved by
+ * the event, the caller puts them back inside the document.
+ */
+public class DocumentBatch {
+
+    private DocumentBatch() {
+    }
+
+    /**
+     * Runs the edits and notifies the listeners once. When the edits throw,
+     * the listeners are still notified of the changes already made.
+     *
+     * @param <D>
+     * @param doc
+     * @param edits
+     */
+    public static <D extends AbstractDocument> void run(D doc, Consumer<D> edits) {
+        BatchEdit batch = new BatchEdit(doc);
+        // Latest first, as for the document listeners.
+        UndoableEditListener[] undoListeners = doc.getUndoableEditListeners();
+        for (UndoableEditListener listener : undoListeners) {
+            doc.removeUndoableEditListener(listener);
+        }
+        Suspension suspension = new Suspension(doc);
+        doc.addUndoableEditListener(batch);
+        try {
+            runLocked(doc, () -> edits.accept(doc));
+        } finally {
+            doc.removeUndoableEditListener(batch);
+            for (int i = undoListeners.length - 1; i >= 0; i--) {
+                doc.addUndoableEditListener(undoListeners[i]);
+            }
+            batch.end();
+            if (suspension.resume(batch)) {
+                UndoableEditEvent event = new UndoableEditEvent(doc, batch);
+                for (UndoableEditListener listener : undoListeners) {
+                    listener.undoableEditHappened(event);
+                }
+            }
+        }
+    }
+
+    /*
+     * Runs the task under the write lock of the document, which only the
+     * document takes: removing nothing locks it and calls its filter. The
+     * lock is reentrant, the edits of the task take it again.
+     */
+    private static void runLocked(AbstractDocument doc, Runnable task) {
+        DocumentFilter filter = doc.getDocumentFilter();
+        doc.setDocumentFilter(new LockFilter(filter, task));
+        try {
+            doc.remove(0, 0);
+        } catch (BadLocationException e) {
+            // Offset 0 is in every document.
+            throw new IllegalStateException(e);
+        } finally {
+            doc.setDocumentFilter(filter);
+        }
+    }
+
+    /*
+     * The edits of a batch, and the event that tells the document listeners
+     * about them.
+     */
+    // Only held by undo histories, never serialized.
+    @SuppressWarnings("serial")
+    private static class BatchEdit extends CompoundEdit implements DocumentEvent, UndoableEditListener {
+
+        private final AbstractDocument doc;
+        private int offset;
+        private int length;
+        private AbstractDocument.ElementEdit rootChange;
+
+        BatchEdit(AbstractDocument doc) {
+            this.doc = doc;
+        }
+
+        @Override
+        public void undoableEditHappened(UndoableEditEvent e) {
+            addEdit(e.getEdit());
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            Suspension suspension = new Suspension(doc);
+            try {
+                runLocked(doc, super::undo);
+            } finally {
+                suspension.resume(this);
+            }
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            Suspension suspension = new Suspension(doc);
+            try {
+                runLocked(doc, super::redo);
+            } finally {
+                suspension.resume(this);
+            }
+        }
+
+        @Override
+        public int getOffset() {
+            return offset;
+        }
+
+        @Override
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public Document getDocument() {
+            return doc;
+        }
+
+        @Override
+        public EventType getType() {
+            return EventType.CHANGE;
+        }
+
+        @Override
+        public ElementChange getChange(Element elem) {
+            return rootChange != null && rootChange.getElement() == elem ? rootChange : null;
+        }
+    }
+
+    /*
+     * The document listeners removed from a document, with the range changed
+     * while they are away.
+     */
+    private static class Suspension implements DocumentListener {
+
+        private final AbstractDocument doc;
+        private final DocumentListener[] listeners;
+        private final Element[] rootChildren;
+        private int start = Integer.MAX_VALUE;
+        private int end = -1;
+
+        Suspension(AbstractDocument doc) {
+            this.doc = doc;
+            // Latest first, the order in which the document notifies them.
+            listeners = doc.getDocumentListeners();
+            rootChildren = children(doc.getDefaultRootElement());
+            for (DocumentListener listener : listeners) {
+                doc.removeDocumentListener(listener);
+            }
+            doc.addDocumentListener(this);
+        }
+
+        /*
+         * Adds the listeners back and gives them the batch as the event of the
+         * changes. False when nothing changed.
+         */
+        boolean resume(BatchEdit batch) {
+            doc.removeDocumentListener(this);
+            for (int i = listeners.length - 1; i >= 0; i--) {
+                doc.addDocumentListener(listeners[i]);
+            }
+            if (start > end) {
+                return false;
+            }
+            batch.offset = start;
+            batch.length = Math.min(end, doc.getLength()) - start;
+            batch.rootChange = rootChange(doc.getDefaultRootElement(), start, batch.offset + batch.length);
+            for (DocumentListener listener : listeners) {
+                listener.changedUpdate(batch);
+            }
+            return true;
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            int offset = e.getOffset();
+            if (end >= offset) {
+                end += e.getLength();
+            }
+            start = Math.min(start, offset);
+            end = Math.max(end, offset + e.getLength());
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            int offset = e.getOffset();
+            if (start > offset) {
+                start = Math.max(offset, start - e.getLength());
+            }
+            if (end > offset) {
+                end = Math.max(offset, end - e.getLength());
+            }
+            start = Math.min(start, offset);
+            end = Math.max(end, offset);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            start = Math.min(start, e.getOffset());
+            end = Math.max(end, e.getOffset() + e.getLength());
+        }
+
+        /*
+         * Replaces the children of the root in the changed range, whose views
+         * are rebuilt. The children before and after it that are still the
+         * same elements keep their views.
+         */
+        private AbstractDocument.ElementEdit rootChange(Element root, int from, int to) {
+            Element[] newChildren = children(root);
+            int first = root.getElementIndex(from);
+            int last = Math.max(first, root.getElementIndex(to));
+            int prefix = 0;
+            while (prefix < first && prefix < rootChildren.length && rootChildren[prefix] == newChildren[prefix]) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < newChildren.length - 1 - last && suffix < rootChildren.length - prefix
+                    && rootChildren[rootChildren.length - 1 - suffix] == newChildren[newChildren.length - 1 - suffix]) {
+                suffix++;
+            }
+            return new AbstractDocument.ElementEdit(root, prefix,
+                    Arrays.copyOfRange(rootChildren, prefix, rootChildren.length - suffix),
+                    Arrays.copyOfRange(newChildren, prefix, newChildren.length - suffix));
+        }
+
+        private static Element[] children(Element elem) {
+            Element[] children = new Element[elem.getElementCount()];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = elem.getElement(i);
+            }
+            return children;
+        }
+    }
+
+    /*
+     * Runs the task when nothing is removed, once, and passes every other
+     * edit on to the filter the document had.
+     */
+    private static class LockFilter extends DocumentFilter {
+
+        private final DocumentFilter next;
+        private Runnable task;
+
+        LockFilter(DocumentFilter next, Runnable task) {
+            this.next = next;
+            this.task = task;
+        }
+
+        @Override
+        public void remove(FilterBypass fb, int offset, int length) throws BadLocationException {
+            if (length == 0 && task != null) {
+                Runnable locked = task;
+                // The edits of the task may remove nothing too.
+                task = null;
+                locked.run();
+            } else if (next != null) {
+                next.remove(fb, offset, length);
+            } else {
+                super.remove(fb, offset, length);
+            }
+        }
+
+        @Override
+        public void insertString(FilterBypass fb, int offset, String string, AttributeSet attr) throws BadLocationException {
+            if (next != null) {
+                next.insertString(fb, offset, string, attr);
+            } else {
+                super.insertString(fb, offset, string, attr);
+            }
+        }
+
+        @Override
+        public void replace(FilterBypass fb, int offset, int length, String text, AttributeSet attrs) throws BadLocationException {
+            if (next != null) {
+                next.replace(fb, offset, length, text, attrs);
+            } else {
+                super.replace(fb, offset, length, text, attrs);
+            }
+        }
+    }
+}
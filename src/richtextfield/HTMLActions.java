@@ -2,24 +2,26 @@ package richtextfield;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.GraphicsConfiguration;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.Reader;
 import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
 import java.util.logging.Level;
-import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.JTextPane;
+import javax.swing.ProgressMonitor;
 import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
@@ -29,9 +31,13 @@ import javax.swing.text.MutableAttributeSet;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyledDocument;
-import javax.swing.text.html.HTML;
 import javax.swing.text.html.HTMLDocument;
 import javax.swing.text.html.HTMLEditorKit;
+import richtextfield.core.DocumentEngine;
+import richtextfield.images.ImageInsertPolicy;
+import richtextfield.io.DocumentCache;
+import richtextfield.io.DocumentPackage;
+import richtextfield.io.HTMLDocumentLoader;
 import richtextfield.utils.CustomLogger;
 import richtextfield.utils.ScreenCapture;
 
@@ -39,6 +45,15 @@ public class HTMLActions {
 
     private static final float INDENT_STEP = 20f;
 
+    // Images inserted at once are encoded a few at a time.
+    private static final ExecutorService ENCODER = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)),
+            r -> {
+                Thread t = new Thread(r, "RichTextField-ImageEncoder");
+                t.setDaemon(true);
+                return t;
+            });
+
     private static final JFileChooser FILE_CHOOSER = new JFileChooser() {
         @Override
         public void approveSelection() {
@@ -71,6 +86,10 @@ public class HTMLActions {
             "HyperText Markup Language Files",
             "html", "htm"
     );
+    public static final FileNameExtensionFilter FILE_FILTER_PACKAGE = createFileExtensionFilter(
+            "Documento empaquetado",
+            DocumentPackage.EXTENSION
+    );
 
     static {
         FILE_CHOOSER.setFileSelectionMode(JFileChooser.FILES_ONLY);
@@ -222,57 +241,154 @@ public class HTMLActions {
         File file = getFile(textPane, JFileChooser.OPEN_DIALOG, FILE_FILTER_IMAGES,
                 FILE_FILTER_JPEG, FILE_FILTER_PNG);
         if (file != null && file.exists()) {
-            insertImage(textPane, new ImageIcon(file.getAbsolutePath()), file.getName());
+            insertImage(textPane, file);
         }
     }
 
     public static void captureScreenShot(JTextPane textPane) {
+        captureScreenShot(textPane, getImageInsertPolicy(textPane));
+    }
+
+    public static void captureScreenShot(JTextPane textPane, ImageInsertPolicy policy) {
         Color selectionColor = Color.RED;
-        final ScreenCapture screenCapture = new ScreenCapture(selectionColor);
-        Thread thread = new Thread(() -> {
-            screenCapture.captureImage();
-            if (screenCapture.isImageCaptured()) {
-                BufferedImage img = screenCapture.getImage();
-                insertImage(textPane, new ImageIcon(img), "ScreenShot_%s.png".formatted(System.currentTimeMillis()));
+        DocumentEngine engine = getDocumentEngine(textPane);
+        int targetWidth = getTargetWidth(textPane, policy);
+        String imageName = "ScreenShot_%s.png".formatted(System.currentTimeMillis());
+        CompletableFuture<String> dataUri = new ScreenCapture(selectionColor, ScreenCapture.Mode.FROZEN).captureAsync()
+                .thenCompose(img -> encodeAsync(() -> engine.encodeImage(img, policy, targetWidth)));
+        insertImageTag(textPane, imageName, dataUri);
+    }
+
+    /**
+     * The engine of the text pane, created for its editor kit the first time
+     * it is needed, with the shared DocumentCache.
+     *
+     * @param textPane
+     * @return
+     */
+    public static DocumentEngine getDocumentEngine(JTextPane textPane) {
+        HTMLEditorKit kit = (HTMLEditorKit) textPane.getEditorKit();
+        if (textPane.getClientProperty(DocumentEngine.CLIENT_PROPERTY) instanceof DocumentEngine engine
+                && engine.getEditorKit() == kit) {
+            return engine;
+        }
+        DocumentEngine engine = new DocumentEngine(kit);
+        engine.setCache(DocumentCache.getShared());
+        textPane.putClientProperty(DocumentEngine.CLIENT_PROPERTY, engine);
+        return engine;
+    }
+
+    public static ImageInsertPolicy getImageInsertPolicy(JTextPane textPane) {
+        Object policy = textPane.getClientProperty(ImageInsertPolicy.CLIENT_PROPERTY);
+        return policy instanceof ImageInsertPolicy imageInsertPolicy ? imageInsertPolicy : ImageInsertPolicy.UNLIMITED;
+    }
+
+    public static void insertImage(JTextPane textPane, File file) {
+        insertImage(textPane, file, getImageInsertPolicy(textPane));
+    }
+
+    /**
+     * Inserts an image file keeping its original bytes when the format can be
+     * embedded as it is (JPEG, PNG) and the image is within the policy limits.
+     * Otherwise the image is resampled and/or converted once before encoding.
+     *
+     * @param textPane
+     * @param file
+     * @param policy
+     */
+    public static void insertImage(JTextPane textPane, File file, ImageInsertPolicy policy) {
+        DocumentEngine engine = getDocumentEngine(textPane);
+        int targetWidth = getTargetWidth(textPane, policy);
+        insertImageAsync(textPane, file.getName(),
+                () -> engine.encodeImage(Files.readAllBytes(file.toPath()), policy, targetWidth));
+    }
+
+    public static void insertImage(JTextPane textPane, BufferedImage image, String imageName) {
+        insertImage(textPane, image, imageName, getImageInsertPolicy(textPane));
+    }
+
+    public static void insertImage(JTextPane textPane, BufferedImage image, String imageName, ImageInsertPolicy policy) {
+        DocumentEngine engine = getDocumentEngine(textPane);
+        int targetWidth = getTargetWidth(textPane, policy);
+        insertImageAsync(textPane, imageName, () -> engine.encodeImage(image, policy, targetWidth));
+    }
+
+    public static void insertImage(JTextPane textPane, ImageIcon icon, String iconName) {
+        ImageInsertPolicy policy = getImageInsertPolicy(textPane);
+        DocumentEngine engine = getDocumentEngine(textPane);
+        int targetWidth = getTargetWidth(textPane, policy);
+        insertImageAsync(textPane, iconName, () -> engine.encodeImage(toBufferedImage(icon), policy, targetWidth));
+    }
+
+    private static int getTargetWidth(JTextPane textPane, ImageInsertPolicy policy) {
+        GraphicsConfiguration gc = textPane.getGraphicsConfiguration();
+        double devicePixelRatio = gc != null ? gc.getDefaultTransform().getScaleX() : 1d;
+        return policy.getTargetWidth(textPane.getWidth(), devicePixelRatio);
+    }
+
+    @FunctionalInterface
+    private interface DataUriSupplier {
+
+        String get() throws IOException;
+    }
+
+    private static void insertImageAsync(JTextPane textPane, String imageName, DataUriSupplier dataUri) {
+        insertImageTag(textPane, imageName, encodeAsync(dataUri));
+    }
+
+    private static CompletableFuture<String> encodeAsync(DataUriSupplier dataUri) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        ENCODER.execute(() -> {
+            try {
+                future.complete(dataUri.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
             }
         });
-        thread.start();
+        return future;
     }
 
-    public static void insertImage(JTextPane textPane, ImageIcon icon, String iconName) {
-        new Thread(() -> {
-            HTMLEditorKit kit = (HTMLEditorKit) textPane.getEditorKit();
-            HTMLDocument doc = (HTMLDocument) textPane.getDocument();
+    private static void insertImageTag(JTextPane textPane, String imageName, CompletableFuture<String> dataUri) {
+        dataUri.whenComplete((src, ex) -> SwingUtilities.invokeLater(() -> {
+            if (ex != null) {
+                // A cancelled screen capture is not an error.
+                if (!(ex instanceof CancellationException) && !(ex.getCause() instanceof CancellationException)) {
+                    showImageError(textPane, imageName, ex);
+                }
+                return;
+            }
             try {
-                String base64 = encodeToBase64(icon);
-                String imgTag = "<p><img src=\"data:image/png;base64," + base64 + "\" alt=\"" + iconName + "\"></p>";
-                kit.insertHTML(doc, textPane.getCaretPosition(), imgTag, 0, 0, HTML.Tag.P);
-                SwingUtilities.invokeLater(() -> {
+                HTMLDocument doc = (HTMLDocument) textPane.getDocument();
+                getDocumentEngine(textPane).insertImage(doc, textPane.getCaretPosition(), src, imageName);
                 textPane.revalidate();
                 textPane.repaint();
-                });
             } catch (Exception e) {
-                String errorMsg = "Error al intentar añadir una imagen:\n%s".formatted(iconName);
-                CustomLogger.print(HTMLActions.class, Level.SEVERE, errorMsg, e);
-                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(
-                        textPane,
-                        errorMsg,
-                        "ERROR",
-                        JOptionPane.ERROR_MESSAGE
-                ));
-        }
-        }).start();
+                showImageError(textPane, imageName, e);
+            }
+        }));
     }
 
-    private static String encodeToBase64(ImageIcon icon) throws IOException {
+    private static void showImageError(JTextPane textPane, String imageName, Throwable e) {
+        String errorMsg = "Error al intentar añadir una imagen:\n%s".formatted(imageName);
+        CustomLogger.print(HTMLActions.class, Level.SEVERE, errorMsg, e);
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(
+                textPane,
+                errorMsg,
+                "ERROR",
+                JOptionPane.ERROR_MESSAGE
+        ));
+    }
+
+    private static BufferedImage toBufferedImage(ImageIcon icon) {
+        if (icon.getImage() instanceof BufferedImage image) {
+            return image;
+        }
         BufferedImage image = new BufferedImage(
                 icon.getIconWidth(), icon.getIconHeight(), BufferedImage.TYPE_INT_ARGB);
         Graphics g = image.createGraphics();
         icon.paintIcon(null, g, 0, 0);
         g.dispose();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ImageIO.write(image, "png", baos);
-        return Base64.getEncoder().encodeToString(baos.toByteArray());
+        return image;
     }
 
     public static void setAsList(JTextPane textPane, boolean isNumber) {
@@ -285,19 +401,18 @@ public class HTMLActions {
     }
 
     public static void saveAsHTML(JTextPane textPane) {
-        File file = getFile(textPane, JFileChooser.SAVE_DIALOG, FILE_FILTER_HTML);
+        File file = getFile(textPane, JFileChooser.SAVE_DIALOG, FILE_FILTER_HTML, FILE_FILTER_PACKAGE);
         if (file != null) {
+            DocumentEngine engine = getDocumentEngine(textPane);
+            HTMLDocument doc = (HTMLDocument) textPane.getDocument();
             new Thread(() -> {
-            try {
-                HTMLEditorKit kit = (HTMLEditorKit) textPane.getEditorKit();
-                StringWriter writer = new StringWriter();
-                kit.write(writer, textPane.getDocument(), 0, textPane.getDocument().getLength());
-                Files.writeString(file.toPath(), writer.toString(), StandardOpenOption.CREATE);
+                try {
+                    engine.save(doc, file.toPath(), false);
                     SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(
                             textPane,
                             "Documento guardado correctamente en:\n%s".formatted(file)
                     ));
-            } catch (Exception e) {
+                } catch (Exception e) {
                     String errorMsg = "Error al guardar el documento en:\n%s".formatted(file);
                     CustomLogger.print(HTMLActions.class, Level.SEVERE, errorMsg, e);
                     SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(
@@ -306,35 +421,54 @@ public class HTMLActions {
                             "ERROR",
                             JOptionPane.ERROR_MESSAGE
                     ));
-            }
+                }
             }).start();
         }
     }
 
     public static void loadFromHTML(JTextPane textPane) {
-        File file = getFile(textPane, JFileChooser.OPEN_DIALOG, FILE_FILTER_HTML);
+        File file = getFile(textPane, JFileChooser.OPEN_DIALOG, FILE_FILTER_HTML, FILE_FILTER_PACKAGE);
         if (file != null && file.exists() && file.isFile()) {
-            new Thread(() -> {
-            try {
-                List<String> stringLines = Files.readAllLines(file.toPath());
-                HTMLEditorKit kit = (HTMLEditorKit) textPane.getEditorKit();
-                textPane.setText("");
-                kit.read(new StringReader(String.join("", stringLines)), textPane.getDocument(), 0);
-                    SwingUtilities.invokeLater(() -> {
-                        textPane.validate();
-                        textPane.repaint();
-                    });
-            } catch (Exception e) {
+            ProgressMonitor monitor = new ProgressMonitor(textPane, "Cargando documento...", file.getName(), 0, 100);
+            DocumentEngine engine = getDocumentEngine(textPane);
+            HTMLDocumentLoader loader = new HTMLDocumentLoader(textPane, file.toPath()) {
+                @Override
+                protected HTMLDocument load(BiFunction<Reader, Long, Reader> decorator) throws Exception {
+                    return engine.load(getSource(), decorator);
+                }
+
+                @Override
+                protected void loaded(HTMLDocument doc) {
+                    monitor.close();
+                    textPane.validate();
+                    textPane.repaint();
+                }
+
+                @Override
+                protected void failed(Exception e) {
+                    monitor.close();
                     String errorMsg = "Error al cargar el documento:\n%s".formatted(file);
                     CustomLogger.print(HTMLActions.class, Level.SEVERE, errorMsg, e);
-                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(
+                    JOptionPane.showMessageDialog(
                             textPane,
                             errorMsg,
                             "ERROR",
                             JOptionPane.ERROR_MESSAGE
-                    ));
-            }
-            }).start();
+                    );
+                }
+            };
+            loader.addPropertyChangeListener(e -> {
+                if ("progress".equals(e.getPropertyName())) {
+                    monitor.setProgress((Integer) e.getNewValue());
+                }
+                if (monitor.isCanceled()) {
+                    loader.cancel(true);
+                }
+                if (loader.isDone()) {
+                    monitor.close();
+                }
+            });
+            loader.execute();
         }
     }
 }
@@ -3,8 +3,6 @@ package richtextfield;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.swing.JOptionPane;
 import javax.swing.JTextPane;
 import javax.swing.SwingUtilities;
@@ -100,41 +98,8 @@ public class HTMLListBehaviorHandler {
     public void insertListFromTextPane(boolean ordered) {
 
         try {
-            HTMLEditorKit kit = (HTMLEditorKit) textPane.getEditorKit();
             HTMLDocument doc = (HTMLDocument) textPane.getDocument();
-
-            int start = textPane.getSelectionStart();
-            int end = textPane.getSelectionEnd();
-            if (start == end) {
-                return;
-            }
-
-            String selectedText = textPane.getSelectedText();
-            if (selectedText == null || selectedText.trim().isEmpty()) {
-                return;
-            }
-
-            String[] lines = selectedText.split("\\r?\\n");
-
-            StringBuilder html = new StringBuilder();
-            html.append(ordered ? "<ol>" : "<ul>");
-
-            Pattern bulletPattern = Pattern.compile("^\\s*(\\u2022|\\d+\\.)\\s+(.*)");
-
-            for (String line : lines) {
-                Matcher matcher = bulletPattern.matcher(line);
-                if (matcher.matches()) {
-                    html.append("<li>").append(matcher.group(2).trim()).append("</li>");
-                } else {
-                    html.append("<li>").append(line.trim()).append("</li>");
-                }
-            }
-
-            html.append(ordered ? "</ol>" : "</ul>");
-
-            doc.remove(start, end - start);
-            kit.insertHTML(doc, start, html.toString(), 0, 0, ordered ? HTML.Tag.OL : HTML.Tag.UL);
-
+            HTMLActions.getDocumentEngine(textPane).toList(doc, textPane.getSelectionStart(), textPane.getSelectionEnd(), ordered);
         } catch (Exception ex) {
             String errorMsg = "Error al crear el listado.";
             CustomLogger.print(HTMLActions.class, Level.SEVERE, errorMsg, ex);
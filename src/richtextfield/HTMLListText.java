@@ -30,7 +30,6 @@ public class HTMLListText {
     }
 
     public static void doList(JTextPane textPane, MODE mode) throws BadLocationException {
-        StyledDocument doc = textPane.getStyledDocument();
         String selectedText = textPane.getSelectedText();
         int caretPosition = textPane.getCaretPosition();
         int selectionEnd = caretPosition;
@@ -38,7 +37,22 @@ public class HTMLListText {
             caretPosition = textPane.getSelectionStart();
             selectionEnd = textPane.getSelectionEnd();
         }
+        doList(textPane.getStyledDocument(), caretPosition, selectionEnd, mode);
+        textPane.requestFocusInWindow();
+    }
 
+    /**
+     * Applies the mode to the paragraphs between caretPosition and
+     * selectionEnd. Only the document is used, so it also works without a
+     * text pane.
+     *
+     * @param doc
+     * @param caretPosition
+     * @param selectionEnd
+     * @param mode
+     * @throws BadLocationException
+     */
+    public static void doList(StyledDocument doc, int caretPosition, int selectionEnd, MODE mode) throws BadLocationException {
         Element paraEle = doc.getParagraphElement(caretPosition);
         int paraEleStart = paraEle.getStartOffset();
         int paraEleEnd;
@@ -62,19 +76,19 @@ public class HTMLListText {
 
             switch (mode) {
                 case INSERT_BULLET:
-                    if ((!isBulletedPara(textPane, paraEleStart))
-                            && (!isNumberedPara(textPane, paraEleStart))) {
-                        insertListText(textPane, paraEleStart, paraEleStart, null);
+                    if ((!isBulletedPara(doc, paraEleStart))
+                            && (!isNumberedPara(doc, paraEleStart))) {
+                        insertListText(doc, paraEleStart, paraEleStart, null);
                     }
                     break; // switch
                 case REMOVE_BULLET:
-                    if (isBulletedPara(textPane, paraEleStart)) {
+                    if (isBulletedPara(doc, paraEleStart)) {
 
                         doc.remove(paraEleStart, BULLET_TEXT.length());
                     }
                     break; // switch
                 case INSERT_NUMBER:
-                    if (isBulletedPara(textPane, paraEleStart)) {
+                    if (isBulletedPara(doc, paraEleStart)) {
                         break; // switch
                     }
 
@@ -83,20 +97,20 @@ public class HTMLListText {
                         n = 0;
                     }
 
-                    if (isNumberedPara(textPane, paraEleStart)) {
+                    if (isNumberedPara(doc, paraEleStart)) {
 
                         // remove any existing number
-                        doc.remove(paraEleStart, getNumberLength(textPane, paraEleStart));
+                        doc.remove(paraEleStart, getNumberLength(doc, paraEleStart));
                     }
 
-                    if (!isNumberedPara(textPane, paraEleStart)) {
-                        insertListText(textPane, paraEleStart, paraEleStart, ++n);
+                    if (!isNumberedPara(doc, paraEleStart)) {
+                        insertListText(doc, paraEleStart, paraEleStart, ++n);
                     }
 
                     break; // switch
                 case REMOVE_NUMBER:
-                    if (isNumberedPara(textPane, paraEleStart)) {
-                        doc.remove(paraEleStart, getNumberLength(textPane, paraEleStart));
+                    if (isNumberedPara(doc, paraEleStart)) {
+                        doc.remove(paraEleStart, getNumberLength(doc, paraEleStart));
                     }
                     break; // switch
             }
@@ -108,39 +122,34 @@ public class HTMLListText {
 
         } while (paraEleEnd <= selectionEnd);
         // NUMBERS_PARA_LOOP
-
-        textPane.requestFocusInWindow();
     }
 
-    private static void insertListText(JTextPane textPane, int insertPos, int attributesPos, Integer number)
+    private static void insertListText(StyledDocument doc, int insertPos, int attributesPos, Integer number)
             throws BadLocationException {
         String listText = BULLET_TEXT;
-        AttributeSet attrs1 = getParaStartAttributes(textPane, attributesPos);
+        AttributeSet attrs1 = getParaStartAttributes(doc, attributesPos);
         if (number != null) {
             listText = getNumberString(number);
             SimpleAttributeSet attrs2 = new SimpleAttributeSet(attrs1);
             attrs2.addAttribute(NUMBERS_ATTR, number);
             attrs1 = attrs2;
         }
-        StyledDocument doc = textPane.getStyledDocument();
         doc.insertString(insertPos, listText, attrs1);
     }
 
-    private static char getParaFirstCharacter(JTextPane textPane, int paraEleStart) throws BadLocationException {
-        return textPane.getText(paraEleStart, 1).charAt(0);
+    private static char getParaFirstCharacter(StyledDocument doc, int paraEleStart) throws BadLocationException {
+        return doc.getText(paraEleStart, 1).charAt(0);
     }
 
-    private static boolean isBulletedPara(JTextPane textPane, int paraEleStart) throws BadLocationException {
-        return getParaFirstCharacter(textPane, paraEleStart) == BULLET_CHAR;
+    private static boolean isBulletedPara(StyledDocument doc, int paraEleStart) throws BadLocationException {
+        return getParaFirstCharacter(doc, paraEleStart) == BULLET_CHAR;
     }
 
-    private static boolean isFirstCharNumber(JTextPane textPane, int paraEleStart) throws BadLocationException {
-        return Character.isDigit(getParaFirstCharacter(textPane, paraEleStart));
+    private static boolean isFirstCharNumber(StyledDocument doc, int paraEleStart) throws BadLocationException {
+        return Character.isDigit(getParaFirstCharacter(doc, paraEleStart));
     }
 
-    private static AttributeSet getParaStartAttributes(JTextPane textPane, int pos) {
-
-        StyledDocument doc = textPane.getStyledDocument();
+    private static AttributeSet getParaStartAttributes(StyledDocument doc, int pos) {
         Element charEle = doc.getCharacterElement(pos);
         return charEle.getAttributes();
     }
@@ -151,12 +160,12 @@ public class HTMLListText {
         return attrs2;
     }
 
-    private static boolean isNumberedPara(JTextPane textPane, int paraEleStart) throws BadLocationException {
+    private static boolean isNumberedPara(StyledDocument doc, int paraEleStart) throws BadLocationException {
 
-        AttributeSet attrSet = getParaStartAttributes(textPane, paraEleStart);
+        AttributeSet attrSet = getParaStartAttributes(doc, paraEleStart);
         Integer paraNum = (Integer) attrSet.getAttribute(NUMBERS_ATTR);
 
-        return !((paraNum == null) || (!isFirstCharNumber(textPane, paraEleStart)));
+        return !((paraNum == null) || (!isFirstCharNumber(doc, paraEleStart)));
     }
 
     private static String getNumberString(Integer number) {
@@ -168,12 +177,12 @@ public class HTMLListText {
 	 * the number + dot + space. For example, the text "12. A Numbered para..."
 	 * has the number length of 4.
      */
-    private static int getNumberLength(JTextPane textPane, int paraEleStart) {
-        return getNumberString(getParaNumber(textPane, paraEleStart)).length();
+    private static int getNumberLength(StyledDocument doc, int paraEleStart) {
+        return getNumberString(getParaNumber(doc, paraEleStart)).length();
     }
 
-    private static Integer getParaNumber(JTextPane textPane, int paraEleStart) {
-        AttributeSet attrSet = getParaStartAttributes(textPane, paraEleStart);
+    private static Integer getParaNumber(StyledDocument doc, int paraEleStart) {
+        AttributeSet attrSet = getParaStartAttributes(doc, paraEleStart);
         Integer paraNum = (Integer) attrSet.getAttribute(NUMBERS_ATTR);
         return paraNum;
     }
@@ -245,7 +254,7 @@ public class HTMLListText {
                     case KeyEvent.VK_LEFT: // same as that of VK_KP_LEFT
                     case KeyEvent.VK_KP_LEFT:
                         if (isNumbered) {
-                            int newPos = pos - (getNumberLength(textPane, paraEleStart) + 1);
+                            int newPos = pos - (getNumberLength(textPane.getStyledDocument(), paraEleStart) + 1);
                             doLeftArrowKeyRoutine(newPos, startPosPlusNum__);
                         } else if (isBulleted) {
                             int newPos = pos - (BULLET_TEXT.length() + 1);
@@ -292,7 +301,7 @@ public class HTMLListText {
                 Element paraEle = textPane.getStyledDocument().getParagraphElement(textPane.getCaretPosition());
                 int paraEleStart = paraEle.getStartOffset();
 
-                if (isBulletedPara(textPane, paraEleStart)) {
+                if (isBulletedPara(textPane.getStyledDocument(), paraEleStart)) {
                     int bulletLength = BULLET_TEXT.length();
                     if (e.getDot() == (paraEleStart + bulletLength)) {
 
@@ -303,9 +312,9 @@ public class HTMLListText {
                     } else {
                         // continue
                     }
-                } else if (isNumberedPara(textPane, paraEleStart)) {
+                } else if (isNumberedPara(textPane.getStyledDocument(), paraEleStart)) {
 
-                    int numLen = getNumberLength(textPane, paraEleStart);
+                    int numLen = getNumberLength(textPane.getStyledDocument(), paraEleStart);
 
                     if (e.getDot() < (paraEleStart + numLen)) {
 
@@ -345,7 +354,7 @@ public class HTMLListText {
 
             // No numbered text at bottom, no processing required -or-
             // no next para after selection end (end of document text).
-            if ((!isNumberedPara(textPane, bottomParaEleStart))
+            if ((!isNumberedPara(textPane.getStyledDocument(), bottomParaEleStart))
                     || (bottomParaEleEnd > doc.getLength())) {
                 return;
             }
@@ -354,12 +363,12 @@ public class HTMLListText {
             Element paraEle = doc.getParagraphElement(bottomParaEleEnd + 1);
             int paraEleStart = paraEle.getStartOffset();
 
-            if (!isNumberedPara(textPane, paraEleStart)) {
+            if (!isNumberedPara(textPane.getStyledDocument(), paraEleStart)) {
                 return;
             }
 
             // Process re-numbering
-            Integer numTop = getParaNumber(textPane, topParaEle.getStartOffset());
+            Integer numTop = getParaNumber(textPane.getStyledDocument(), topParaEle.getStartOffset());
 
             if (numTop != null) {
 
@@ -392,7 +401,7 @@ public class HTMLListText {
             NUMBERED_PARA_LOOP:
             while (nextParaIsNumbered) {
 
-                Integer oldNum = getParaNumber(textPane, nextParaEleStart);
+                Integer oldNum = getParaNumber(textPane.getStyledDocument(), nextParaEleStart);
                 newNum++;
                 replaceNumbers(nextParaEleStart, oldNum, newNum);
 
@@ -408,7 +417,7 @@ public class HTMLListText {
 
                 nextParaEle = doc.getParagraphElement(nextParaPos);
                 nextParaEleStart = nextParaEle.getStartOffset();
-                nextParaIsNumbered = isNumberedPara(textPane, nextParaEleStart);
+                nextParaIsNumbered = isNumberedPara(textPane.getStyledDocument(), nextParaEleStart);
             }
             // NUMBERED_PARA_LOOP
 
@@ -419,17 +428,17 @@ public class HTMLListText {
                     nextParaEleStart,
                     getNumberString(prevNum).length(),
                     getNumberString(newNum),
-                    getNumbersAttributes(getParaStartAttributes(textPane, nextParaEleStart), newNum));
+                    getNumbersAttributes(getParaStartAttributes(textPane.getStyledDocument(), nextParaEleStart), newNum));
         }
 
         private boolean isNumberedParaForPos(int caretPos) throws BadLocationException {
             Element paraEle = textPane.getStyledDocument().getParagraphElement(caretPos);
-            return isNumberedPara(textPane, paraEle.getStartOffset());
+            return isNumberedPara(textPane.getStyledDocument(), paraEle.getStartOffset());
         }
 
         private boolean isBulletedParaForPos(int caretPos) throws BadLocationException {
             Element paraEle = textPane.getStyledDocument().getParagraphElement(caretPos);
-            return isBulletedPara(textPane, paraEle.getStartOffset());
+            return isBulletedPara(textPane.getStyledDocument(), paraEle.getStartOffset());
         }
 
         /*
@@ -468,7 +477,7 @@ public class HTMLListText {
                 int nextParaEleStart = nextParaEle.getStartOffset();
 
                 if (isNumberedParaForPos(paraEleEnd + 1)) {
-                    doc.remove(pos, getNumberLength(textPane, nextParaEleStart));
+                    doc.remove(pos, getNumberLength(textPane.getStyledDocument(), nextParaEleStart));
                     doReNumberingForDeleteKey(paraEleEnd + 1);
                 } else if (isBulletedParaForPos(paraEleEnd + 1)) {
                     // following para is bulleted, remove
@@ -493,11 +502,11 @@ public class HTMLListText {
             // In case bottom para is not numbered or end of document,
             // no re-numbering is required.
             if ((paraEleEnd > doc.getLength())
-                    || (!isNumberedPara(textPane, bottomParaEleStart))) {
+                    || (!isNumberedPara(textPane.getStyledDocument(), bottomParaEleStart))) {
                 return;
             }
 
-            Integer n = getParaNumber(textPane, paraEleStart);
+            Integer n = getParaNumber(textPane.getStyledDocument(), paraEleStart);
             doNewNumbers(bottomParaEleStart, n);
         }
 
@@ -510,7 +519,7 @@ public class HTMLListText {
             if (startPosPlusNum__) {
 
                 int startOffset = paraEle.getStartOffset();
-                doc.remove(startOffset, getNumberLength(textPane, startOffset));
+                doc.remove(startOffset, getNumberLength(textPane.getStyledDocument(), startOffset));
                 doReNumberingForBackspaceKey(paraEle, startOffset);
                 startPosPlusNum__ = false;
             }
@@ -531,7 +540,7 @@ public class HTMLListText {
             Element bottomParaEle = doc.getParagraphElement(paraEle.getEndOffset() + 1);
             int bottomParaEleStart = bottomParaEle.getStartOffset();
 
-            if (!isNumberedPara(textPane, bottomParaEleStart)) {
+            if (!isNumberedPara(textPane.getStyledDocument(), bottomParaEleStart)) {
                 return; // there are no numbers following this para, and
                 // no re-numbering required.
             }
@@ -545,7 +554,7 @@ public class HTMLListText {
                 // before the document start; numTop = null
             } else {
                 Element topParaEle = doc.getParagraphElement(paraEleStart - 1);
-                numTop = getParaNumber(textPane, topParaEle.getStartOffset());
+                numTop = getParaNumber(textPane.getStyledDocument(), topParaEle.getStartOffset());
             }
 
             if (numTop == null) {
@@ -597,7 +606,7 @@ public class HTMLListText {
             String prevParaText = prevParaText_;
             int prevParaEleStart = prevParaEleStart_;
             if (numberedPara_) {
-                int len = getNumberLength(textPane, prevParaEleStart) + 1; // +1 for CR
+                int len = getNumberLength(textPane.getStyledDocument(), prevParaEleStart) + 1; // +1 for CR
 
                 // Check if prev para with numbers has text					
                 if (prevParaText.length() == len) {
@@ -608,9 +617,9 @@ public class HTMLListText {
                 }
                 // Prev para with number and text,			
                 // insert number for new para (current position)
-                Integer num = getParaNumber(textPane, prevParaEleStart);
+                Integer num = getParaNumber(textPane.getStyledDocument(), prevParaEleStart);
                 num++;
-                insertListText(textPane, textPane.getCaretPosition(), prevParaEleStart, num);
+                insertListText(textPane.getStyledDocument(), textPane.getCaretPosition(), prevParaEleStart, num);
 
                 // After insert, check for numbered paras following the newly
                 // inserted numberd para; and re-number those paras.
@@ -627,7 +636,7 @@ public class HTMLListText {
                 Element nextParaEle = doc.getParagraphElement(newParaEleEnd + 1);
                 int nextParaEleStart = nextParaEle.getStartOffset();
 
-                if (isNumberedPara(textPane, nextParaEleStart)) {
+                if (isNumberedPara(textPane.getStyledDocument(), nextParaEleStart)) {
                     doNewNumbers(nextParaEleStart, num);
                 }
             } else if (bulletedPara_) {
@@ -642,7 +651,7 @@ public class HTMLListText {
 
                 // Insert bullet for next para (current position), and
                 // prev para attributes are used for this bullet.	
-                insertListText(textPane, textPane.getCaretPosition(), prevParaEleStart, null);
+                insertListText(textPane.getStyledDocument(), textPane.getCaretPosition(), prevParaEleStart, null);
             }
 
         } // doEnterKeyRoutine()
@@ -9,7 +9,18 @@ import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.InputEvent;
+import java.awt.event.ItemEvent;
 import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import javax.swing.AbstractAction;
 import javax.swing.Action;
 import javax.swing.ImageIcon;
@@ -25,11 +36,19 @@ import javax.swing.JToolBar;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
 import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyledEditorKit;
+import javax.swing.text.html.HTMLDocument;
 import javax.swing.text.html.HTMLEditorKit;
-import javax.swing.undo.UndoManager;
+import richtextfield.core.DocumentEngine;
+import richtextfield.images.ImageInsertPolicy;
 import richtextfield.images.ImageLoader;
+import richtextfield.io.AutoSaver;
+import richtextfield.io.DocumentPackage;
+import richtextfield.io.EditJournal;
+import richtextfield.utils.ScreenCapture;
 
 public class RichTextField extends JPanel {
 
@@ -79,12 +98,40 @@ public class RichTextField extends JPanel {
     public static final String ID_ACTION_ADD_PICTURE = "addPictureAction";
     public static final String ID_ACTION_SCREENSHOT = "screenshot";
 
+    private static final ExecutorService IO_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "RichTextField-IO");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final JToolBar toolbar;
     private final JScrollPane scrollpane;
     private final JTextPane textPane;
-    private final UndoManager undoManager;
+    private final CoalescingUndoManager undoManager;
     
     private HTMLListBehaviorHandler listBehaviorHandler;
+    private final transient AutoSaver autoSaver;
+    // The engine the actions of the text pane use, not serialized.
+    private transient DocumentEngine documentEngine;
+    private transient EditJournal editJournal;
+    // What the toolbar shows, null until it is first updated.
+    private transient ToolbarState toolbarState;
+    // Set while the toolbar is updated, so the combos do not apply their selection.
+    private boolean updatingToolbar = false;
+    // The controls that show the toolbar state.
+    private JComboBox<String> fontCombo;
+    private JComboBox<String> sizeComboBox;
+    private JButton foregroundButton;
+    private JButton backgroundButton;
+    private JButton undoButton;
+    private JButton redoButton;
+    private JToggleButton boldButton;
+    private JToggleButton underlineButton;
+    private JToggleButton italicButton;
+    private JToggleButton alignLeftButton;
+    private JToggleButton alignCenterButton;
+    private JToggleButton alignRightButton;
+    private JToggleButton alignJustifiedButton;
 
     public RichTextField() {
         super();
@@ -92,9 +139,10 @@ public class RichTextField extends JPanel {
         toolbar = new JToolBar();
         scrollpane = new JScrollPane();
         textPane = new JTextPane();
-        undoManager = new UndoManager();
+        undoManager = new CoalescingUndoManager();
 
         configureComponents();
+        autoSaver = new AutoSaver(textPane);
     }
 
     private void configureComponents() {
@@ -125,16 +173,8 @@ public class RichTextField extends JPanel {
 
         toolbar.addSeparator();
 
-        addButtonToToolbar(ID_ACTION_UNDO, "Deshacer", ICON_UNDO, e -> {
-            if (undoManager.canUndo()) {
-                undoManager.undo();
-            }
-        });
-        addButtonToToolbar(ID_ACTION_REDO, "Rehacer", ICON_REDO, e -> {
-            if (undoManager.canRedo()) {
-                undoManager.redo();
-            }
-        });
+        undoButton = addButtonToToolbar(ID_ACTION_UNDO, "Deshacer", ICON_UNDO, e -> undo());
+        redoButton = addButtonToToolbar(ID_ACTION_REDO, "Rehacer", ICON_REDO, e -> redo());
 
         toolbar.addSeparator();
 
@@ -149,9 +189,12 @@ public class RichTextField extends JPanel {
 
         toolbar.add(new JLabel(" Fuente: "));
 
-        JComboBox fontCombo = new JComboBox(GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames());
+        fontCombo = new JComboBox<>(GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames());
         fontCombo.setName(ID_ACTION_FONT_FAMILY);
         fontCombo.addItemListener((e) -> {
+            if (updatingToolbar || e.getStateChange() != ItemEvent.SELECTED) {
+                return;
+            }
             SwingUtilities.invokeLater(() -> {
                 new HTMLEditorKit.FontFamilyAction(ID_ACTION_FONT_FAMILY, (String) fontCombo.getSelectedItem())
                         .actionPerformed(new ActionEvent(e.getSource(), 0, ID_ACTION_FONT_FAMILY));
@@ -160,10 +203,13 @@ public class RichTextField extends JPanel {
         });
         toolbar.add(fontCombo);
 
-        JComboBox sizeComboBox = new JComboBox(new String[]{"8", "10", "12", "14", "16", "18", "20", "24", "32", "40", "60", "80"});
+        sizeComboBox = new JComboBox<>(new String[]{"8", "10", "12", "14", "16", "18", "20", "24", "32", "40", "60", "80"});
         sizeComboBox.setName(ID_ACTION_FONT_SIZE);
         sizeComboBox.setEditable(true);
         sizeComboBox.addItemListener((e) -> {
+            if (updatingToolbar || e.getStateChange() != ItemEvent.SELECTED) {
+                return;
+            }
             SwingUtilities.invokeLater(() -> {
                 new HTMLEditorKit.FontSizeAction(ID_ACTION_FONT_SIZE, Integer.parseInt(sizeComboBox.getSelectedItem().toString()))
                         .actionPerformed(new ActionEvent(textPane, 0, ID_ACTION_FONT_SIZE));
@@ -171,7 +217,7 @@ public class RichTextField extends JPanel {
         });
         toolbar.add(sizeComboBox);
 
-        addButtonToToolbar(ID_ACTION_FONT_COLOR, "Color de la Fuente", generateColorIcon(Color.BLACK), (e) -> {
+        foregroundButton = addButtonToToolbar(ID_ACTION_FONT_COLOR, "Color de la Fuente", generateColorIcon(Color.BLACK), (e) -> {
             SwingUtilities.invokeLater(() -> {
                 AttributeSet attrs = textPane.getCharacterAttributes();
                 Color newColor = JColorChooser.showDialog((Component) e.getSource(), "Color", StyleConstants.getForeground(attrs));
@@ -187,7 +233,7 @@ public class RichTextField extends JPanel {
 
         toolbar.add(new JLabel(" Fondo: "));
 
-        addButtonToToolbar(ID_ACTION_FONT_BACKGROUND, "Color de fondo", generateColorIcon(Color.BLACK), (e) -> {
+        backgroundButton = addButtonToToolbar(ID_ACTION_FONT_BACKGROUND, "Color de fondo", generateColorIcon(Color.BLACK), (e) -> {
             SwingUtilities.invokeLater(() -> {
                 AttributeSet attrs = textPane.getCharacterAttributes();
                 Color newColor = JColorChooser.showDialog((Component) e.getSource(), "Color", StyleConstants.getBackground(attrs));
@@ -200,36 +246,36 @@ public class RichTextField extends JPanel {
 
         toolbar.addSeparator();
 
-        addToggleButtonToToolbar(ID_ACTION_BOLD, "Negrita", ICON_BOLD,
+        boldButton = addToggleButtonToToolbar(ID_ACTION_BOLD, "Negrita", ICON_BOLD,
                 new HTMLEditorKit.BoldAction());
-        addToggleButtonToToolbar(ID_ACTION_UNDERLINE, "Subrayado", ICON_UNDERLINE,
+        underlineButton = addToggleButtonToToolbar(ID_ACTION_UNDERLINE, "Subrayado", ICON_UNDERLINE,
                 new HTMLEditorKit.UnderlineAction());
-        addToggleButtonToToolbar(ID_ACTION_ITALIC, "Cursiva", ICON_ITALIC,
+        italicButton = addToggleButtonToToolbar(ID_ACTION_ITALIC, "Cursiva", ICON_ITALIC,
                 new HTMLEditorKit.ItalicAction());
 
         toolbar.addSeparator();
 
         addButtonToToolbar(ID_ACTION_REMOVE_INDENT, "Quitar indentado", ICON_REMOVE_INDENT,
-                (e) -> HTMLActions.removeIndent(textPane));
+                (e) -> runBatch(doc -> HTMLActions.removeIndent(textPane)));
         addButtonToToolbar(ID_ACTION_ADD_INDENT, "Insertar indentado", ICON_ADD_INDENT,
-                (e) -> HTMLActions.addIndent(textPane));
+                (e) -> runBatch(doc -> HTMLActions.addIndent(textPane)));
 
         toolbar.addSeparator();
 
         addButtonToToolbar(ID_ACTION_LIST, "Lista", ICON_LIST,
-                e -> listBehaviorHandler.insertListFromTextPane(false));
+                e -> runBatch(doc -> listBehaviorHandler.insertListFromTextPane(false)));
         addButtonToToolbar(ID_ACTION_NUMERED_LIST, "Lista Numerada", ICON_NUMERED_LIST,
-                e -> listBehaviorHandler.insertListFromTextPane(true));
+                e -> runBatch(doc -> listBehaviorHandler.insertListFromTextPane(true)));
 
         toolbar.addSeparator();
 
-        addToggleButtonToToolbar(ID_ACTION_ALIGN_LEFT, "Alineación Izquierda", ICON_ALIGN_LEFT,
+        alignLeftButton = addToggleButtonToToolbar(ID_ACTION_ALIGN_LEFT, "Alineación Izquierda", ICON_ALIGN_LEFT,
                 new HTMLEditorKit.AlignmentAction(ID_ACTION_ALIGN_LEFT, StyleConstants.ALIGN_LEFT));
-        addToggleButtonToToolbar(ID_ACTION_ALIGN_CENTER, "Alineación Centrada", ICON_ALIGN_CENTER,
+        alignCenterButton = addToggleButtonToToolbar(ID_ACTION_ALIGN_CENTER, "Alineación Centrada", ICON_ALIGN_CENTER,
                 new HTMLEditorKit.AlignmentAction(ID_ACTION_ALIGN_CENTER, StyleConstants.ALIGN_CENTER));
-        addToggleButtonToToolbar(ID_ACTION_ALIGN_RIGHT, "Alineación Derecha", ICON_ALIGN_RIGHT,
+        alignRightButton = addToggleButtonToToolbar(ID_ACTION_ALIGN_RIGHT, "Alineación Derecha", ICON_ALIGN_RIGHT,
                 new HTMLEditorKit.AlignmentAction(ID_ACTION_ALIGN_RIGHT, StyleConstants.ALIGN_RIGHT));
-        addToggleButtonToToolbar(ID_ACTION_ALIGN_JUSTIFIED, "Alineación Justificada", ICON_ALIGN_JUSTIFIED,
+        alignJustifiedButton = addToggleButtonToToolbar(ID_ACTION_ALIGN_JUSTIFIED, "Alineación Justificada", ICON_ALIGN_JUSTIFIED,
                 new HTMLEditorKit.AlignmentAction(ID_ACTION_ALIGN_JUSTIFIED, StyleConstants.ALIGN_JUSTIFIED));
 
         toolbar.addSeparator();
@@ -238,6 +284,203 @@ public class RichTextField extends JPanel {
                 (e) -> HTMLActions.addImage(textPane));
         addButtonToToolbar(ID_ACTION_SCREENSHOT, "Capturar pantalla", ICON_SCREENSHOT,
                 (e) -> HTMLActions.captureScreenShot(textPane));
+        ScreenCapture.prewarm();
+    }
+
+    public ImageInsertPolicy getImageInsertPolicy() {
+        return HTMLActions.getImageInsertPolicy(textPane);
+    }
+
+    public void setImageInsertPolicy(ImageInsertPolicy policy) {
+        textPane.putClientProperty(ImageInsertPolicy.CLIENT_PROPERTY, policy);
+    }
+
+    public AutoSaver getAutoSaver() {
+        return autoSaver;
+    }
+
+    /**
+     * @return the undo history of the text pane, where the grouping of typing
+     * can be configured
+     */
+    public CoalescingUndoManager getUndoManager() {
+        return undoManager;
+    }
+
+    /**
+     * Makes the edits as a single change, see DocumentBatch: the views, the
+     * toolbar and the listeners of the document are updated once when they
+     * are done, and they are undone at once. Must be called from the event
+     * dispatch thread.
+     * <p>
+     * Every DocumentListener and UndoableEditListener of the document, also
+     * the ones added by the application, is removed while the edits run.
+     * Afterwards the document listeners get a single changedUpdate covering
+     * the changed range, also for the text inserted and removed, instead of
+     * insertUpdate and removeUpdate, and the undo listeners a single edit.
+     * The edits run under the write lock of the document.
+     *
+     * @param edits
+     */
+    public void runBatch(Consumer<HTMLDocument> edits) {
+        HTMLDocument doc = (HTMLDocument) textPane.getStyledDocument();
+        undoManager.beginCompoundEdit();
+        try {
+            DocumentBatch.run(doc, edits);
+        } finally {
+            undoManager.endCompoundEdit();
+            keepCaretInDocument();
+            updateStyleButtons();
+        }
+    }
+
+    /**
+     * Saves the document to the given file a moment after each burst of
+     * changes, or stops doing it when null.
+     *
+     * @param target
+     */
+    public void setAutoSaveTarget(Path target) {
+        autoSaver.setTarget(target);
+    }
+
+    public EditJournal getEditJournal() {
+        return editJournal;
+    }
+
+    /**
+     * Journals every edit to the given file so the work can be recovered after
+     * a crash, or stops journaling when null. The previous journal is kept.
+     *
+     * @param file
+     */
+    public void setEditJournal(Path file) {
+        if (editJournal != null) {
+            editJournal.close();
+            editJournal = null;
+        }
+        if (file != null) {
+            editJournal = new EditJournal(file);
+            editJournal.attach(textPane);
+        }
+    }
+
+    /**
+     * Replaces the document with the one recovered from a journal.
+     *
+     * @param file
+     * @return false when there is no journal to recover
+     * @throws IOException
+     */
+    public boolean recoverEditJournal(Path file) throws IOException {
+        HTMLDocument doc = EditJournal.recover(file, (HTMLEditorKit) textPane.getEditorKit());
+        if (doc == null) {
+            return false;
+        }
+        textPane.setDocument(doc);
+        return true;
+    }
+
+    /**
+     * Replaces the content with the HTML read from the reader. The HTML is
+     * parsed on the calling thread into a new document, and the document is
+     * set on the EDT. The reader is not closed.
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void read(Reader in) throws IOException {
+        HTMLDocument doc = parse(in);
+        if (SwingUtilities.isEventDispatchThread()) {
+            setDocument(doc);
+        } else {
+            try {
+                SwingUtilities.invokeAndWait(() -> setDocument(doc));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (InvocationTargetException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Inserts the HTML read from the reader at pos. Must be called on the EDT.
+     *
+     * @param in
+     * @param pos
+     * @throws IOException
+     */
+    public void read(Reader in, int pos) throws IOException {
+        try {
+            textPane.getEditorKit().read(in, textPane.getDocument(), pos);
+        } catch (BadLocationException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Parses the HTML on a background thread and sets the document on the EDT.
+     *
+     * @param in
+     * @return
+     */
+    public CompletableFuture<Void> readAsync(Reader in) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return parse(in);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, IO_EXECUTOR).thenAcceptAsync(this::setDocument, SwingUtilities::invokeLater);
+    }
+
+    /**
+     * Writes the content as HTML. The writer is flushed but not closed.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(Writer out) throws IOException {
+        write(out, 0, -1);
+    }
+
+    /**
+     * Writes a range of the content as HTML. The document is read locked while
+     * it is written, so it can be called from any thread.
+     *
+     * @param out
+     * @param pos
+     * @param len the length of the range, or -1 to write up to the end
+     * @throws IOException
+     */
+    public void write(Writer out, int pos, int len) throws IOException {
+        DocumentPackage.writeHTML((HTMLDocument) textPane.getDocument(), out, pos, len);
+    }
+
+    public CompletableFuture<Void> writeAsync(Writer out) {
+        return writeAsync(out, 0, -1);
+    }
+
+    public CompletableFuture<Void> writeAsync(Writer out, int pos, int len) {
+        HTMLDocument doc = (HTMLDocument) textPane.getDocument();
+        return CompletableFuture.runAsync(() -> {
+            try {
+                DocumentPackage.writeHTML(doc, out, pos, len);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, IO_EXECUTOR);
+    }
+
+    private HTMLDocument parse(Reader in) throws IOException {
+        return documentEngine.read(in);
+    }
+
+    private void setDocument(HTMLDocument doc) {
+        textPane.setDocument(doc);
+        textPane.setCaretPosition(0);
     }
 
     private ImageIcon generateColorIcon(Color color) {
@@ -247,12 +490,15 @@ public class RichTextField extends JPanel {
     private void configureTextPane() {
         textPane.setContentType("text/html");
         textPane.setEditorKit(new ScaledHTMLEditorKit());
+        // Created here, so parse does not touch the client properties off the EDT.
+        documentEngine = HTMLActions.getDocumentEngine(textPane);
         textPane.addCaretListener(e -> updateStyleButtons());
 //        HTMLListText.ListParaKeyListener textWithListListener = new HTMLListText.ListParaKeyListener(textPane);
 //        textPane.addKeyListener(textWithListListener);
 //        textPane.addCaretListener(textWithListListener);
         listBehaviorHandler = new HTMLListBehaviorHandler(textPane);
-        textPane.getStyledDocument().addUndoableEditListener(e -> undoManager.addEdit(e.getEdit()));
+        undoManager.attach(textPane.getStyledDocument());
+        textPane.addPropertyChangeListener("document", e -> documentChanged((Document) e.getOldValue(), (Document) e.getNewValue()));
         textPane.addComponentListener(new ComponentAdapter() {
             @Override
             public void componentResized(ComponentEvent e) {
@@ -271,55 +517,107 @@ public class RichTextField extends JPanel {
         textPane.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_I, InputEvent.CTRL_DOWN_MASK), ID_ACTION_ITALIC);
         textPane.getActionMap().put(ID_ACTION_ITALIC, createToolbarActionListener(new StyledEditorKit.ItalicAction()));
         textPane.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK), ID_ACTION_UNDO);
-        textPane.getActionMap().put(ID_ACTION_UNDO, createToolbarActionListener(e -> {
-            if (undoManager.canUndo()) {
-                undoManager.undo();
-            }
-        }));
+        textPane.getActionMap().put(ID_ACTION_UNDO, createToolbarActionListener(e -> undo()));
         textPane.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK), ID_ACTION_REDO);
-        textPane.getActionMap().put(ID_ACTION_REDO, createToolbarActionListener(e -> {
-            if (undoManager.canRedo()) {
-                undoManager.redo();
-            }
-        }));
+        textPane.getActionMap().put(ID_ACTION_REDO, createToolbarActionListener(e -> redo()));
+    }
+
+    /*
+     * Documents loaded in the background are swapped in whole, the listeners
+     * move to the new document and the history of the old one is dropped.
+     */
+    private void documentChanged(Document oldDoc, Document newDoc) {
+        if (oldDoc != null) {
+            undoManager.detach(oldDoc);
+        }
+        undoManager.discardAllEdits();
+        if (newDoc != null) {
+            undoManager.attach(newDoc);
+        }
+        updateStyleButtons();
+    }
+
+    private void undo() {
+        if (undoManager.canUndo()) {
+            undoManager.undo();
+            keepCaretInDocument();
+        }
     }
 
+    private void redo() {
+        if (undoManager.canRedo()) {
+            undoManager.redo();
+            keepCaretInDocument();
+        }
+    }
+
+    /*
+     * The carets are not moved by the single event of a batch, or of its undo,
+     * and can be left after the end of the document.
+     */
+    private void keepCaretInDocument() {
+        int length = textPane.getDocument().getLength();
+        if (textPane.getCaret().getDot() > length || textPane.getCaret().getMark() > length) {
+            textPane.setCaretPosition(Math.min(textPane.getCaretPosition(), length));
+        }
+    }
+
+    /*
+     * Runs on every caret move, so nothing is updated while the state does not
+     * change, and otherwise only the controls whose part of the state changed.
+     */
     private void updateStyleButtons() {
-        AttributeSet attrs = textPane.getCharacterAttributes();
-
-        for (Component c : toolbar.getComponents()) {
-            if (isAction(c, ID_ACTION_FONT_FAMILY)) {
-                ((JComboBox) c).setSelectedItem(String.valueOf(StyleConstants.getFontFamily(attrs)));
-            } else if (isAction(c, ID_ACTION_FONT_SIZE)) {
-                ((JComboBox) c).setSelectedItem(String.valueOf(StyleConstants.getFontSize(attrs)));
-            } else if (isAction(c, ID_ACTION_FONT_COLOR)) {
-                ((JButton) c).setIcon(generateColorIcon(StyleConstants.getForeground(attrs)));
-            } else if (isAction(c, ID_ACTION_FONT_BACKGROUND)) {
-                ((JButton) c).setIcon(generateColorIcon(StyleConstants.getBackground(attrs)));
-            } else if (isAction(c, ID_ACTION_UNDO)) {
-                ((JButton) c).setEnabled(undoManager.canUndo());
-            } else if (isAction(c, ID_ACTION_REDO)) {
-                ((JButton) c).setEnabled(undoManager.canRedo());
-            } else if (isAction(c, ID_ACTION_BOLD)) {
-                ((JToggleButton) c).setSelected(StyleConstants.isBold(attrs));
-            } else if (isAction(c, ID_ACTION_UNDERLINE)) {
-                ((JToggleButton) c).setSelected(StyleConstants.isUnderline(attrs));
-            } else if (isAction(c, ID_ACTION_ITALIC)) {
-                ((JToggleButton) c).setSelected(StyleConstants.isItalic(attrs));
-            } else if (isAction(c, ID_ACTION_ALIGN_LEFT)) {
-                ((JToggleButton) c).setSelected(StyleConstants.getAlignment(attrs) == StyleConstants.ALIGN_LEFT);
-            } else if (isAction(c, ID_ACTION_ALIGN_CENTER)) {
-                ((JToggleButton) c).setSelected(StyleConstants.getAlignment(attrs) == StyleConstants.ALIGN_CENTER);
-            } else if (isAction(c, ID_ACTION_ALIGN_RIGHT)) {
-                ((JToggleButton) c).setSelected(StyleConstants.getAlignment(attrs) == StyleConstants.ALIGN_RIGHT);
-            } else if (isAction(c, ID_ACTION_ALIGN_JUSTIFIED)) {
-                ((JToggleButton) c).setSelected(StyleConstants.getAlignment(attrs) == StyleConstants.ALIGN_JUSTIFIED);
+        ToolbarState state = ToolbarState.of(textPane.getCharacterAttributes(), undoManager);
+        ToolbarState shown = toolbarState;
+        if (state.equals(shown)) {
+            return;
+        }
+        toolbarState = state;
+
+        updatingToolbar = true;
+        try {
+            if (shown == null || !shown.fontFamily().equals(state.fontFamily())) {
+                select(fontCombo, state.fontFamily());
+            }
+            if (shown == null || shown.fontSize() != state.fontSize()) {
+                select(sizeComboBox, String.valueOf(state.fontSize()));
+            }
+            if (shown == null || !shown.foreground().equals(state.foreground())) {
+                foregroundButton.setIcon(generateColorIcon(state.foreground()));
             }
+            if (shown == null || !shown.background().equals(state.background())) {
+                backgroundButton.setIcon(generateColorIcon(state.background()));
+            }
+            if (shown == null || shown.canUndo() != state.canUndo()) {
+                undoButton.setEnabled(state.canUndo());
+            }
+            if (shown == null || shown.canRedo() != state.canRedo()) {
+                redoButton.setEnabled(state.canRedo());
+            }
+            if (shown == null || shown.bold() != state.bold()) {
+                boldButton.setSelected(state.bold());
+            }
+            if (shown == null || shown.underline() != state.underline()) {
+                underlineButton.setSelected(state.underline());
+            }
+            if (shown == null || shown.italic() != state.italic()) {
+                italicButton.setSelected(state.italic());
+            }
+            if (shown == null || shown.alignment() != state.alignment()) {
+                alignLeftButton.setSelected(state.alignment() == StyleConstants.ALIGN_LEFT);
+                alignCenterButton.setSelected(state.alignment() == StyleConstants.ALIGN_CENTER);
+                alignRightButton.setSelected(state.alignment() == StyleConstants.ALIGN_RIGHT);
+                alignJustifiedButton.setSelected(state.alignment() == StyleConstants.ALIGN_JUSTIFIED);
+            }
+        } finally {
+            updatingToolbar = false;
         }
     }
 
-    private boolean isAction(Component c, String actionId) {
-        return actionId.equals(c.getName());
+    private static void select(JComboBox<String> combo, String item) {
+        if (!item.equals(combo.getSelectedItem())) {
+            combo.setSelectedItem(item);
+        }
     }
 
     private Action createToolbarActionListener(ActionListener functionalityAction) {
@@ -328,29 +626,52 @@ public class RichTextField extends JPanel {
             public void actionPerformed(ActionEvent e) {
                 SwingUtilities.invokeLater(() -> {
                     e.setSource(textPane);
-                    functionalityAction.actionPerformed(e);
+                    // Undone at once, however many edits the action makes.
+                    undoManager.beginCompoundEdit();
+                    try {
+                        functionalityAction.actionPerformed(e);
+                    } finally {
+                        undoManager.endCompoundEdit();
+                    }
+                    // A toggle button selects itself when clicked, whatever the action did.
+                    toolbarState = null;
                     updateStyleButtons();
                 });
             }
         };
     }
 
-    private void addButtonToToolbar(String id, String tooltip, ImageIcon icon, ActionListener action) {
+    private JButton addButtonToToolbar(String id, String tooltip, ImageIcon icon, ActionListener action) {
         JButton tButton = new JButton(icon);
         tButton.setName(id);
         tButton.setToolTipText(tooltip);
         tButton.addActionListener(createToolbarActionListener(action));
 
         toolbar.add(tButton);
+        return tButton;
     }
 
-    private void addToggleButtonToToolbar(String id, String tooltip, ImageIcon icon, ActionListener action) {
+    private JToggleButton addToggleButtonToToolbar(String id, String tooltip, ImageIcon icon, ActionListener action) {
         JToggleButton tButton = new JToggleButton(icon);
         tButton.setName(id);
         tButton.setToolTipText(tooltip);
         tButton.addActionListener(createToolbarActionListener(action));
 
         toolbar.add(tButton);
+        return tButton;
     }
 
+    /*
+     * The style at the caret and the undo state, as the toolbar shows them.
+     */
+    private record ToolbarState(String fontFamily, int fontSize, Color foreground, Color background,
+            boolean bold, boolean underline, boolean italic, int alignment, boolean canUndo, boolean canRedo) {
+
+        static ToolbarState of(AttributeSet attrs, CoalescingUndoManager undoManager) {
+            return new ToolbarState(StyleConstants.getFontFamily(attrs), StyleConstants.getFontSize(attrs),
+                    StyleConstants.getForeground(attrs), StyleConstants.getBackground(attrs),
+                    StyleConstants.isBold(attrs), StyleConstants.isUnderline(attrs), StyleConstants.isItalic(attrs),
+                    StyleConstants.getAlignment(attrs), undoManager.canUndo(), undoManager.canRedo());
+        }
+    }
 }
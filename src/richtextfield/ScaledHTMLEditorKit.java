@@ -1,31 +1,144 @@
 package richtextfield;
 
+import java.awt.Color;
+import java.awt.Container;
 import java.awt.Graphics;
-import java.awt.Image;
+import java.awt.Graphics2D;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.Shape;
-import java.awt.Toolkit;
-import java.util.Base64;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
+import javax.swing.JEditorPane;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeListener;
+import javax.swing.text.AbstractDocument;
 import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import javax.swing.text.Element;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.View;
 import javax.swing.text.ViewFactory;
 import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
 import javax.swing.text.html.HTMLEditorKit;
 import javax.swing.text.html.ImageView;
+import richtextfield.images.DataUriDecoder;
+import richtextfield.images.DecodedImageCache;
+import richtextfield.images.ImageLoader;
+import richtextfield.io.CompactHTMLWriter;
+import richtextfield.io.DocumentPackage;
 import richtextfield.utils.CustomLogger;
 
 public class ScaledHTMLEditorKit extends HTMLEditorKit {
 
+    /**
+     * Interpolation used to build the scaled renditions of the images.
+     */
+    public enum ScalingQuality {
+        SPEED(RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, false),
+        BALANCED(RenderingHints.VALUE_INTERPOLATION_BILINEAR, false),
+        QUALITY(RenderingHints.VALUE_INTERPOLATION_BILINEAR, true);
+
+        private final Object interpolation;
+        private final boolean stepped;
+
+        ScalingQuality(Object interpolation, boolean stepped) {
+            this.interpolation = interpolation;
+            this.stepped = stepped;
+        }
+
+        public BufferedImage scale(BufferedImage source, int width, int height) {
+            return ImageLoader.scaleImage(source, width, height, interpolation, stepped);
+        }
+    }
+
     private final ViewFactory defaultFactory = new ScaledHTMLFactory();
+    // Views and viewports of the editor the kit is installed on, not serialized.
+    private final transient Set<ScaledImageView> renderedViews = Collections.newSetFromMap(new WeakHashMap<>());
+    private final transient Set<JViewport> observedViewports = Collections.newSetFromMap(new WeakHashMap<>());
+    private final transient ChangeListener viewportListener = e -> releaseHiddenRenditions((JViewport) e.getSource());
+    private ScalingQuality scalingQuality = ScalingQuality.QUALITY;
+    private JEditorPane editor;
 
     @Override
     public ViewFactory getViewFactory() {
         return defaultFactory;
     }
 
+    @Override
+    public void install(JEditorPane c) {
+        super.install(c);
+        editor = c;
+    }
+
+    @Override
+    public void deinstall(JEditorPane c) {
+        super.deinstall(c);
+        for (JViewport viewport : observedViewports) {
+            viewport.removeChangeListener(viewportListener);
+        }
+        observedViewports.clear();
+        for (ScaledImageView view : new ArrayList<>(renderedViews)) {
+            view.releaseRendition();
+        }
+        editor = null;
+    }
+
+    /**
+     * Writes HTML documents through CompactHTMLWriter: no indentation, and the
+     * character styles as CSS classes instead of repeated font tags.
+     */
+    @Override
+    public void write(Writer out, Document doc, int pos, int len) throws IOException, BadLocationException {
+        if (doc instanceof HTMLDocument htmlDoc) {
+            new CompactHTMLWriter(out, htmlDoc, pos, len).write();
+        } else {
+            super.write(out, doc, pos, len);
+        }
+    }
+
+    public ScalingQuality getScalingQuality() {
+        return scalingQuality;
+    }
+
+    public void setScalingQuality(ScalingQuality scalingQuality) {
+        this.scalingQuality = scalingQuality != null ? scalingQuality : ScalingQuality.QUALITY;
+        if (editor != null) {
+            editor.repaint();
+        }
+    }
+
+    private void trackRendition(ScaledImageView view) {
+        renderedViews.add(view);
+        JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, view.getContainer());
+        if (viewport != null && observedViewports.add(viewport)) {
+            viewport.addChangeListener(viewportListener);
+        }
+    }
+
+    private void releaseHiddenRenditions(JViewport viewport) {
+        if (renderedViews.isEmpty()) {
+            return;
+        }
+        Rectangle visible = viewport.getViewRect();
+        for (ScaledImageView view : new ArrayList<>(renderedViews)) {
+            if (view.getContainer() == null || !visible.intersects(view.paintedBounds)) {
+                view.releaseRendition();
+            }
+        }
+    }
+
     public static class ScaledHTMLFactory extends HTMLEditorKit.HTMLFactory {
 
         @Override
@@ -40,7 +153,17 @@ public class ScaledHTMLEditorKit extends HTMLEditorKit {
 
     public static class ScaledImageView extends ImageView {
 
-        private Image cachedImage = null;
+        private static final int PLACEHOLDER_SIZE = 64;
+        private static final Color PLACEHOLDER_FILL = new Color(0xEE, 0xEE, 0xEE);
+        private static final Color PLACEHOLDER_BORDER = new Color(0xCC, 0xCC, 0xCC);
+
+        private BufferedImage cachedImage = null;
+        private boolean loading = false;
+        private boolean failed = false;
+        private BufferedImage rendition = null;
+        private ScalingQuality renditionQuality = null;
+        private ScaledHTMLEditorKit renditionOwner = null;
+        private Rectangle paintedBounds = new Rectangle();
 
         public ScaledImageView(Element elem) {
             super(elem);
@@ -50,36 +173,110 @@ public class ScaledHTMLEditorKit extends HTMLEditorKit {
         public void paint(Graphics g, Shape a) {
             Rectangle alloc = (a instanceof Rectangle) ? (Rectangle) a : a.getBounds();
 
-            if (cachedImage == null) {
-                cachedImage = loadImageSafely();
+            requestImage();
+
+            if (loading) {
+                paintPlaceholder(g, alloc);
+                return;
             }
 
             if (cachedImage != null) {
-                int imgWidth = cachedImage.getWidth(null);
-                int imgHeight = cachedImage.getHeight(null);
+                int imgWidth = cachedImage.getWidth();
+                int imgHeight = cachedImage.getHeight();
                 int maxWidth = getContainer().getWidth();
 
                 if (imgWidth > maxWidth) {
                     float scale = (float) maxWidth / imgWidth;
                     int newWidth = maxWidth;
                     int newHeight = (int) (imgHeight * scale);
-                    g.drawImage(cachedImage, alloc.x, alloc.y, newWidth, newHeight, null);
+                    g.drawImage(getRendition(g, newWidth, newHeight), alloc.x, alloc.y, newWidth, newHeight, null);
+                    paintedBounds = new Rectangle(alloc.x, alloc.y, newWidth, newHeight);
                 } else {
+                    releaseRendition();
                     g.drawImage(cachedImage, alloc.x, alloc.y, imgWidth, imgHeight, null);
+                    paintedBounds = new Rectangle(alloc.x, alloc.y, imgWidth, imgHeight);
                 }
             }
         }
 
+        private void paintPlaceholder(Graphics g, Rectangle alloc) {
+            int width = (int) getPreferredSpan(View.X_AXIS);
+            int height = (int) getPreferredSpan(View.Y_AXIS);
+            g.setColor(PLACEHOLDER_FILL);
+            g.fillRect(alloc.x, alloc.y, width, height);
+            g.setColor(PLACEHOLDER_BORDER);
+            g.drawRect(alloc.x, alloc.y, width - 1, height - 1);
+        }
+
+        @Override
+        public void setParent(View parent) {
+            super.setParent(parent);
+            if (parent == null) {
+                releaseRendition();
+            }
+        }
+
+        /*
+         * Returns the image already scaled to the painted size, in device pixels,
+         * so repaints are plain blits. It is rebuilt only when that size or the
+         * scaling quality change.
+         */
+        private BufferedImage getRendition(Graphics g, int width, int height) {
+            double deviceScale = g instanceof Graphics2D g2 ? g2.getTransform().getScaleX() : 1d;
+            int pixelWidth = (int) Math.ceil(width * deviceScale);
+            int pixelHeight = (int) Math.ceil(height * deviceScale);
+            ScaledHTMLEditorKit kit = getKit();
+            ScalingQuality quality = kit != null ? kit.getScalingQuality() : ScalingQuality.QUALITY;
+
+            if (rendition == null || rendition.getWidth() != pixelWidth
+                    || rendition.getHeight() != pixelHeight || renditionQuality != quality) {
+                rendition = quality.scale(cachedImage, pixelWidth, pixelHeight);
+                renditionQuality = quality;
+                if (kit != null && renditionOwner == null) {
+                    renditionOwner = kit;
+                    kit.trackRendition(this);
+                }
+            }
+            return rendition;
+        }
+
+        private void releaseRendition() {
+            if (rendition != null) {
+                rendition = null;
+                renditionQuality = null;
+            }
+            if (renditionOwner != null) {
+                renditionOwner.renderedViews.remove(this);
+                renditionOwner = null;
+            }
+        }
+
+        private ScaledHTMLEditorKit getKit() {
+            Container c = getContainer();
+            if (c instanceof JEditorPane pane && pane.getEditorKit() instanceof ScaledHTMLEditorKit kit) {
+                return kit;
+            }
+            return null;
+        }
+
         @Override
         public float getPreferredSpan(int axis) {
-            if (cachedImage == null) {
-                cachedImage = loadImageSafely();
+            requestImage();
+
+            int containerWidth = getContainer() != null ? getContainer().getWidth() : Integer.MAX_VALUE;
+            if (loading) {
+                // Fixed size until the pixels arrive, then a single relayout of this view.
+                int width = getSizeAttribute(HTML.Attribute.WIDTH);
+                int height = getSizeAttribute(HTML.Attribute.HEIGHT);
+                if (axis == View.X_AXIS) {
+                    return Math.min(width, Math.max(containerWidth, 1));
+                }
+                return width > containerWidth ? (float) height * containerWidth / width : height;
             }
 
             if (cachedImage != null) {
-                int imgWidth = cachedImage.getWidth(null);
-                int imgHeight = cachedImage.getHeight(null);
-                int containerWidth = getContainer() != null ? getContainer().getWidth() : imgWidth;
+                int imgWidth = cachedImage.getWidth();
+                int imgHeight = cachedImage.getHeight();
 
                 if (axis == View.X_AXIS && imgWidth > containerWidth) {
                     return containerWidth;
@@ -94,24 +291,88 @@ public class ScaledHTMLEditorKit extends HTMLEditorKit {
             return super.getPreferredSpan(axis);
         }
 
-        private Image loadImageSafely() {
-            try {
-                AttributeSet attrs = getElement().getAttributes();
-                Object srcAttr = attrs.getAttribute(HTML.Attribute.SRC);
-                if (srcAttr instanceof String src) {
-                    if (src.startsWith("data:image")) {
-                        int commaIndex = src.indexOf(',');
-                        if (commaIndex != -1 && commaIndex + 1 < src.length()) {
-                            String base64 = src.substring(commaIndex + 1);
-                            byte[] imageBytes = Base64.getDecoder().decode(base64);
-                            return Toolkit.getDefaultToolkit().createImage(imageBytes);
-                        }
+        private int getSizeAttribute(HTML.Attribute attribute) {
+            Object value = getElement().getAttributes().getAttribute(attribute);
+            if (value != null) {
+                try {
+                    int size = Integer.parseInt(value.toString().trim());
+                    if (size > 0) {
+                        return size;
                     }
+                } catch (NumberFormatException ignore) {
                 }
-            } catch (Exception e) {
-                CustomLogger.print(ScaledHTMLEditorKit.class, Level.SEVERE, "Error al interactuar cargar una imagen.", e);
             }
-            return null;
+            return PLACEHOLDER_SIZE;
+        }
+
+        /*
+         * Starts loading the image the first time it is needed. Images already in
+         * the shared cache are used at once, the rest are decoded off the EDT
+         * while a placeholder takes their place.
+         */
+        private void requestImage() {
+            if (cachedImage != null || loading || failed) {
+                return;
+            }
+            AttributeSet attrs = getElement().getAttributes();
+            Object srcAttr = attrs.getAttribute(HTML.Attribute.SRC);
+            if (!(srcAttr instanceof String src)) {
+                failed = true;
+                return;
+            }
+
+            // Views are recreated on every structural edit, the decoded pixels are shared.
+            CompletableFuture<BufferedImage> future;
+            if (DocumentPackage.isImageReference(src)) {
+                Document doc = getDocument();
+                future = DecodedImageCache.getShared().loadAsync(DocumentPackage.getImageKey(src), () -> {
+                    try (InputStream in = DocumentPackage.openImage(doc, src)) {
+                        return DataUriDecoder.readImage(in);
+                    }
+                });
+            } else {
+                int payloadStart = src.startsWith("data:image") ? DataUriDecoder.getPayloadStart(src) : -1;
+                if (payloadStart == -1) {
+                    failed = true;
+                    return;
+                }
+                future = DecodedImageCache.getShared()
+                        .loadAsync(src, payloadStart, () -> DataUriDecoder.readImage(src, payloadStart));
+            }
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                cachedImage = future.join();
+                return;
+            }
+            loading = true;
+            future.whenComplete((image, ex) -> SwingUtilities.invokeLater(() -> imageLoaded(image, ex)));
+        }
+
+        private void imageLoaded(BufferedImage image, Throwable ex) {
+            loading = false;
+            if (image != null) {
+                cachedImage = image;
+            } else {
+                failed = true;
+                CustomLogger.print(ScaledHTMLEditorKit.class, Level.SEVERE, "Error al interactuar cargar una imagen.", ex);
+            }
+            if (getParent() == null) {
+                return;
+            }
+            Document doc = getDocument();
+            if (doc instanceof AbstractDocument abstractDoc) {
+                abstractDoc.readLock();
+            }
+            try {
+                preferenceChanged(null, true, true);
+            } finally {
+                if (doc instanceof AbstractDocument abstractDoc) {
+                    abstractDoc.readUnlock();
+                }
+            }
+            Container c = getContainer();
+            if (c != null) {
+                c.repaint();
+            }
         }
     }
 }
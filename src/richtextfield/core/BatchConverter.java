@@ -0,0 +1,295 @@
+package richtextfield.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.swing.text.html.HTMLDocument;
+import richtextfield.images.ImageInsertPolicy;
+import richtextfield.io.DocumentPackage;
+import richtextfield.io.ParallelHTMLParser;
+import richtextfield.utils.CustomLogger;
+
+/**
+ * Converts every document of a directory tree on a fork-join pool: the document
+ * is loaded, its embedded images are encoded again within an ImageInsertPolicy
+ * and it is written to the output tree through the editor kit, which also
+ * normalizes the markup. The documents being converted at the same time are
+ * limited by their estimated size in memory, not only by their number.
+ * <p>
+ * Usage: {@code BatchConverter <input> <output> [--max-width N] [--max-bytes N]
+ * [--threads N] [--memory MB]}
+ */
+public class BatchConverter {
+
+    public static final long DEFAULT_MEMORY_BUDGET = 512L * 1024 * 1024;
+
+    // A parsed document takes a few times its size on disk.
+    private static final int MEMORY_FACTOR = 4;
+    private static final int KB = 1024;
+
+    private final DocumentEngine engine;
+    private final ImageInsertPolicy policy;
+    private final int parallelism;
+    private final long memoryBudget;
+
+    /**
+     * @param engine
+     * @param policy limits for the embedded images
+     * @param parallelism number of documents converted at the same time
+     * @param memoryBudget estimated bytes of the documents held in memory at
+     * the same time
+     */
+    public BatchConverter(DocumentEngine engine, ImageInsertPolicy policy, int parallelism, long memoryBudget) {
+        this.engine = engine;
+        this.policy = policy;
+        this.parallelism = Math.max(1, parallelism);
+        this.memoryBudget = Math.max(KB, memoryBudget);
+    }
+
+    /**
+     * Result of a conversion.
+     */
+    public static class Report {
+
+        private final int documents;
+        private final int failures;
+        private final int images;
+        private final long bytesRead;
+        private final long bytesWritten;
+        private final long nanos;
+
+        Report(int documents, int failures, int images, long bytesRead, long bytesWritten, long nanos) {
+            this.documents = documents;
+            this.failures = failures;
+            this.images = images;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.nanos = nanos;
+        }
+
+        public int getDocuments() {
+            return documents;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public int getImages() {
+            return images;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public double getSeconds() {
+            return nanos / 1e9;
+        }
+
+        public double getDocumentsPerSecond() {
+            return documents / Math.max(getSeconds(), 1e-9);
+        }
+
+        public double getMegabytesPerSecond() {
+            return bytesRead / (1024d * 1024d) / Math.max(getSeconds(), 1e-9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%d documentos convertidos (%d errores, %d imágenes recodificadas) en %.1f s: %.1f documentos/s, %.1f MB/s, %.1f MB -> %.1f MB",
+                    documents, failures, images, getSeconds(), getDocumentsPerSecond(), getMegabytesPerSecond(),
+                    bytesRead / (1024d * 1024d), bytesWritten / (1024d * 1024d));
+        }
+    }
+
+    public static boolean isDocument(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".html") || name.endsWith(".htm") || DocumentPackage.isPackage(path.toFile());
+    }
+
+    /**
+     * Converts the documents under input into the same relative paths under
+     * output. A document that can not be converted is logged and skipped.
+     *
+     * @param input
+     * @param output
+     * @return
+     * @throws IOException when the input tree can not be listed
+     */
+    public Report convert(Path input, Path output) throws IOException {
+        List<Path> files;
+        try (Stream<Path> tree = Files.walk(input)) {
+            files = tree.filter(Files::isRegularFile).filter(BatchConverter::isDocument).collect(Collectors.toList());
+        }
+        // The kit loads its shared style sheet and DTD lazily, once is enough.
+        engine.createDocument();
+
+        Totals totals = new Totals();
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ConvertTask(files, 0, files.size(), input, output, totals,
+                    new Semaphore((int) Math.min(Integer.MAX_VALUE, memoryBudget / KB))));
+        } finally {
+            pool.shutdown();
+        }
+        return new Report(totals.documents.get(), totals.failures.get(), totals.images.get(),
+                totals.bytesRead.get(), totals.bytesWritten.get(), System.nanoTime() - start);
+    }
+
+    private void convert(Path source, Path target, Totals totals, Semaphore memory) {
+        int permits = 0;
+        try {
+            long size = Files.size(source);
+            int weight = (int) Math.min(memoryBudget / KB, Math.max(1, size * MEMORY_FACTOR / KB));
+            // A plain acquire would park the worker, the pool adds a spare one meanwhile.
+            ForkJoinPool.managedBlock(new MemoryBlocker(memory, weight));
+            permits = weight;
+            HTMLDocument doc = engine.load(source);
+            totals.images.addAndGet(engine.reencodeImages(doc, policy));
+            Files.createDirectories(target.toAbsolutePath().getParent());
+            engine.save(doc, target, false);
+            totals.documents.incrementAndGet();
+            totals.bytesRead.addAndGet(size);
+            totals.bytesWritten.addAndGet(Files.size(target));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            totals.failures.incrementAndGet();
+        } catch (Exception e) {
+            CustomLogger.print(BatchConverter.class, Level.SEVERE, "Error al convertir el documento:\n%s".formatted(source), e);
+            totals.failures.incrementAndGet();
+        } finally {
+            memory.release(permits);
+        }
+    }
+
+    private static class Totals {
+
+        private final AtomicInteger documents = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicInteger images = new AtomicInteger();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong bytesWritten = new AtomicLong();
+    }
+
+    /*
+     * Waits for permits of the memory budget without leaving the pool short of
+     * workers.
+     */
+    private static class MemoryBlocker implements ForkJoinPool.ManagedBlocker {
+
+        private final Semaphore memory;
+        private final int permits;
+        private boolean acquired;
+
+        MemoryBlocker(Semaphore memory, int permits) {
+            this.memory = memory;
+            this.permits = permits;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (!acquired) {
+                memory.acquire(permits);
+                acquired = true;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return acquired || (acquired = memory.tryAcquire(permits));
+        }
+    }
+
+    // Only run on the pool, never serialized.
+    @SuppressWarnings("serial")
+    private class ConvertTask extends RecursiveAction {
+
+        private final List<Path> files;
+        private final int from;
+        private final int to;
+        private final Path input;
+        private final Path output;
+        private final Totals totals;
+        private final Semaphore memory;
+
+        ConvertTask(List<Path> files, int from, int to, Path input, Path output, Totals totals, Semaphore memory) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.input = input;
+            this.output = output;
+            this.totals = totals;
+            this.memory = memory;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                Path source = files.get(from);
+                convert(source, output.resolve(input.relativize(source)), totals, memory);
+            } else if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ConvertTask(files, from, middle, input, output, totals, memory),
+                        new ConvertTask(files, middle, to, input, output, totals, memory));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Uso: BatchConverter <entrada> <salida> [--max-width N] [--max-bytes N] [--threads N] [--memory MB]");
+            System.exit(2);
+        }
+        int maxWidth = 0;
+        long maxBytes = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long memory = DEFAULT_MEMORY_BUDGET;
+        for (int i = 2; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                System.err.println("Falta el valor de la opción: " + args[i]);
+                System.exit(2);
+            }
+            switch (args[i]) {
+                case "--max-width" ->
+                    maxWidth = Integer.parseInt(args[i + 1]);
+                case "--max-bytes" ->
+                    maxBytes = Long.parseLong(args[i + 1]);
+                case "--threads" ->
+                    threads = Integer.parseInt(args[i + 1]);
+                case "--memory" ->
+                    memory = Long.parseLong(args[i + 1]) * 1024 * 1024;
+                default -> {
+                    System.err.println("Opción desconocida: " + args[i]);
+                    System.exit(2);
+                }
+            }
+        }
+        System.setProperty("java.awt.headless", "true");
+        DocumentEngine engine = new DocumentEngine();
+        // The documents are already converted in parallel.
+        engine.setParser(new ParallelHTMLParser(engine.getEditorKit(), threads > 1 ? 1 : Runtime.getRuntime().availableProcessors()));
+        BatchConverter converter = new BatchConverter(engine,
+                new ImageInsertPolicy(maxWidth, maxBytes, false), threads, memory);
+        Report report = converter.convert(Path.of(args[0]), Path.of(args[1]));
+        System.out.println(report);
+        System.exit(report.getFailures() > 0 ? 1 : 0);
+    }
+}
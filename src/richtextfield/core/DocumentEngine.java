@@ -0,0 +1,327 @@
+package richtextfield.core;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+import richtextfield.HTMLListText;
+import richtextfield.ScaledHTMLEditorKit;
+import richtextfield.images.DataUriDecoder;
+import richtextfield.images.DataUriEncoder;
+import richtextfield.images.ImageInsertPolicy;
+import richtextfield.io.DocumentCache;
+import richtextfield.io.DocumentFiles;
+import richtextfield.io.DocumentPackage;
+import richtextfield.io.ParallelHTMLParser;
+
+/**
+ * Operations on documents that need no text pane: load, save, image
+ * re-encoding, list conversion and statistics. Only the HTMLDocument and the
+ * editor kit are used, so it can run with java.awt.headless=true, e.g. to
+ * process stored documents on a server. The Swing actions of the editor are
+ * built on top of it.
+ * <p>
+ * An engine holds no state besides its kit and can be shared between threads,
+ * as long as each document is only modified by one thread at a time. The
+ * engine of a text pane is kept in its CLIENT_PROPERTY.
+ */
+public class DocumentEngine {
+
+    public static final String CLIENT_PROPERTY = "richtextfield.documentEngine";
+
+    private static final Pattern LIST_ITEM_PATTERN = Pattern.compile("^\\s*(\\u2022|\\d+\\.)\\s+(.*)");
+
+    private final HTMLEditorKit kit;
+    private volatile DocumentCache cache;
+    private volatile ParallelHTMLParser parser;
+
+    public DocumentEngine() {
+        this(new ScaledHTMLEditorKit());
+    }
+
+    public DocumentEngine(HTMLEditorKit kit) {
+        this.kit = kit;
+        this.parser = new ParallelHTMLParser(kit);
+    }
+
+    public HTMLEditorKit getEditorKit() {
+        return kit;
+    }
+
+    public DocumentCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @param cache used by load to skip the parsing of unchanged files, null
+     * by default
+     */
+    public void setCache(DocumentCache cache) {
+        this.cache = cache;
+    }
+
+    public ParallelHTMLParser getParser() {
+        return parser;
+    }
+
+    /**
+     * @param parser used by read and load, with as many threads as processors
+     * by default
+     */
+    public void setParser(ParallelHTMLParser parser) {
+        this.parser = parser;
+    }
+
+    public HTMLDocument createDocument() {
+        HTMLDocument doc = (HTMLDocument) kit.createDefaultDocument();
+        doc.putProperty("IgnoreCharsetDirective", Boolean.TRUE);
+        return doc;
+    }
+
+    /**
+     * Parses the HTML read from the reader into a new document. The reader is
+     * not closed.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public HTMLDocument read(Reader in) throws IOException {
+        return parser.read(in, -1, UnaryOperator.identity());
+    }
+
+    /**
+     * Loads an HTML file or a document package, rebuilt from the cache when
+     * there is one and the file has not changed since it was stored.
+     *
+     * @param source
+     * @return
+     * @throws IOException
+     */
+    public HTMLDocument load(Path source) throws IOException {
+        return load(source, (reader, length) -> reader);
+    }
+
+    /**
+     * Loads a file like load(Path), reading it through the readers the
+     * decorator returns, e.g. to report the progress or to cancel the parsing.
+     *
+     * @param source
+     * @param decorator receives every reader of the file and the length of
+     * the HTML it is part of
+     * @return
+     * @throws IOException
+     */
+    public HTMLDocument load(Path source, BiFunction<Reader, Long, Reader> decorator) throws IOException {
+        DocumentCache documentCache = cache;
+        BasicFileAttributes attributes = null;
+        if (documentCache != null) {
+            attributes = Files.readAttributes(source, BasicFileAttributes.class);
+            HTMLDocument cached = documentCache.load(source, kit);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        HTMLDocument doc;
+        if (DocumentPackage.isPackage(source.toFile())) {
+            doc = createDocument();
+            try {
+                DocumentPackage.read(source, doc, kit, decorator);
+            } catch (BadLocationException e) {
+                throw new IOException(e);
+            }
+        } else {
+            // Only a file large enough to be split is read whole before it is parsed.
+            long size = Files.size(source);
+            try (BufferedReader in = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+                doc = parser.read(in, size, reader -> decorator.apply(reader, size));
+            }
+        }
+        if (documentCache != null) {
+            documentCache.store(source, attributes, doc);
+        }
+        return doc;
+    }
+
+    public void write(HTMLDocument doc, Writer out) throws IOException {
+        DocumentPackage.writeHTML(doc, out);
+    }
+
+    /**
+     * Saves the document as a package or as HTML depending on the extension
+     * of the target, see DocumentFiles.save.
+     *
+     * @param doc
+     * @param target
+     * @param force
+     * @throws IOException
+     */
+    public void save(HTMLDocument doc, Path target, boolean force) throws IOException {
+        DocumentFiles.save(doc, target, force);
+    }
+
+    /**
+     * Encodes an image file as a data: URI, keeping its bytes when the format
+     * can be embedded as it is and the image is within the policy limits, see
+     * DataUriEncoder.
+     *
+     * @param imageBytes
+     * @param policy
+     * @param targetWidth
+     * @return
+     * @throws IOException
+     */
+    public String encodeImage(byte[] imageBytes, ImageInsertPolicy policy, int targetWidth) throws IOException {
+        return DataUriEncoder.encode(imageBytes, policy, targetWidth);
+    }
+
+    public String encodeImage(BufferedImage image, ImageInsertPolicy policy, int targetWidth) throws IOException {
+        return DataUriEncoder.encode(image, DataUriEncoder.FORMAT_PNG, policy, targetWidth);
+    }
+
+    /**
+     * Inserts an encoded image as a paragraph of its own.
+     *
+     * @param doc
+     * @param offset
+     * @param src
+     * @param name the alternative text of the image
+     * @throws BadLocationException
+     * @throws IOException
+     */
+    public void insertImage(HTMLDocument doc, int offset, String src, String name) throws BadLocationException, IOException {
+        String imgTag = "<p><img src=\"" + src + "\" alt=\"" + name + "\"></p>";
+        kit.insertHTML(doc, offset, imgTag, 0, 0, HTML.Tag.P);
+    }
+
+    /**
+     * Encodes again the images embedded as data: URIs that exceed the limits
+     * of the policy. Without an editor the width can only be limited by the
+     * maximum width of the policy.
+     *
+     * @param doc
+     * @param policy
+     * @return number of images replaced
+     * @throws IOException
+     */
+    public int reencodeImages(HTMLDocument doc, ImageInsertPolicy policy) throws IOException {
+        if (policy.isUnlimited()) {
+            return 0;
+        }
+        int targetWidth = policy.getTargetWidth(0, 1d);
+        int replaced = 0;
+        for (Element image : findImages(doc)) {
+            String src = (String) image.getAttributes().getAttribute(HTML.Attribute.SRC);
+            int payloadStart = DataUriDecoder.getPayloadStart(src);
+            byte[] bytes;
+            try (InputStream in = DataUriDecoder.openPayload(src, payloadStart)) {
+                bytes = in.readAllBytes();
+            }
+            String encoded = encodeImage(bytes, policy, targetWidth);
+            if (encoded.length() < src.length()) {
+                SimpleAttributeSet attrs = new SimpleAttributeSet();
+                attrs.addAttribute(HTML.Attribute.SRC, encoded);
+                doc.setCharacterAttributes(image.getStartOffset(), image.getEndOffset() - image.getStartOffset(), attrs, false);
+                replaced++;
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * Replaces the lines between start and end with an HTML list. Bullets and
+     * numbers typed at the start of the lines are dropped.
+     *
+     * @param doc
+     * @param start
+     * @param end
+     * @param ordered
+     * @throws BadLocationException
+     * @throws IOException
+     */
+    public void toList(HTMLDocument doc, int start, int end, boolean ordered) throws BadLocationException, IOException {
+        if (start == end) {
+            return;
+        }
+        String text = doc.getText(start, end - start);
+        if (text.trim().isEmpty()) {
+            return;
+        }
+
+        StringBuilder html = new StringBuilder();
+        html.append(ordered ? "<ol>" : "<ul>");
+        for (String line : text.split("\\r?\\n")) {
+            Matcher matcher = LIST_ITEM_PATTERN.matcher(line);
+            if (matcher.matches()) {
+                html.append("<li>").append(matcher.group(2).trim()).append("</li>");
+            } else {
+                html.append("<li>").append(line.trim()).append("</li>");
+            }
+        }
+        html.append(ordered ? "</ol>" : "</ul>");
+
+        doc.remove(start, end - start);
+        kit.insertHTML(doc, start, html.toString(), 0, 0, ordered ? HTML.Tag.OL : HTML.Tag.UL);
+    }
+
+    /**
+     * Adds or removes the bullets and numbers typed as text at the start of
+     * the paragraphs between start and end, see HTMLListText.
+     *
+     * @param doc
+     * @param start
+     * @param end
+     * @param mode
+     * @throws BadLocationException
+     */
+    public void toTextList(HTMLDocument doc, int start, int end, HTMLListText.MODE mode) throws BadLocationException {
+        HTMLListText.doList(doc, start, end, mode);
+    }
+
+    public DocumentStatistics getStatistics(HTMLDocument doc) {
+        return DocumentStatistics.of(doc);
+    }
+
+    private static List<Element> findImages(HTMLDocument doc) {
+        List<Element> images = new ArrayList<>();
+        doc.readLock();
+        try {
+            findImages(doc.getDefaultRootElement(), images);
+        } finally {
+            doc.readUnlock();
+        }
+        return images;
+    }
+
+    private static void findImages(Element elem, List<Element> images) {
+        AttributeSet attrs = elem.getAttributes();
+        if (attrs.getAttribute(StyleConstants.NameAttribute) == HTML.Tag.IMG
+                && attrs.getAttribute(HTML.Attribute.SRC) instanceof String src
+                && src.startsWith("data:image/") && DataUriDecoder.getPayloadStart(src) != -1) {
+            images.add(elem);
+        }
+        for (int i = 0; i < elem.getElementCount(); i++) {
+            findImages(elem.getElement(i), images);
+        }
+    }
+}
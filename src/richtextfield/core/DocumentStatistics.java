@@ -0,0 +1,152 @@
+package richtextfield.core;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Segment;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import richtextfield.images.DataUriDecoder;
+
+/**
+ * Counts of the content of a document, taken in a single pass under the read
+ * lock of the document.
+ */
+public class DocumentStatistics {
+
+    private final int characters;
+    private final int words;
+    private final int paragraphs;
+    private final int lists;
+    private final int listItems;
+    private final int images;
+    private final long embeddedImageBytes;
+
+    private DocumentStatistics(int characters, int words, int paragraphs, int lists, int listItems,
+            int images, long embeddedImageBytes) {
+        this.characters = characters;
+        this.words = words;
+        this.paragraphs = paragraphs;
+        this.lists = lists;
+        this.listItems = listItems;
+        this.images = images;
+        this.embeddedImageBytes = embeddedImageBytes;
+    }
+
+    public static DocumentStatistics of(HTMLDocument doc) {
+        Counter counter = new Counter();
+        doc.readLock();
+        try {
+            counter.countText(doc);
+            counter.countElements(doc.getDefaultRootElement());
+        } finally {
+            doc.readUnlock();
+        }
+        return new DocumentStatistics(counter.characters, counter.words, counter.paragraphs,
+                counter.lists, counter.listItems, counter.images, counter.embeddedImageBytes);
+    }
+
+    /**
+     * @return characters of text, not counting line breaks
+     */
+    public int getCharacters() {
+        return characters;
+    }
+
+    public int getWords() {
+        return words;
+    }
+
+    public int getParagraphs() {
+        return paragraphs;
+    }
+
+    public int getLists() {
+        return lists;
+    }
+
+    public int getListItems() {
+        return listItems;
+    }
+
+    public int getImages() {
+        return images;
+    }
+
+    /**
+     * @return decoded size of the images embedded as data: URIs
+     */
+    public long getEmbeddedImageBytes() {
+        return embeddedImageBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "DocumentStatistics[characters=%d, words=%d, paragraphs=%d, lists=%d, listItems=%d, images=%d, embeddedImageBytes=%d]"
+                .formatted(characters, words, paragraphs, lists, listItems, images, embeddedImageBytes);
+    }
+
+    private static class Counter {
+
+        private int characters;
+        private int words;
+        private int paragraphs;
+        private int lists;
+        private int listItems;
+        private int images;
+        private long embeddedImageBytes;
+
+        void countText(HTMLDocument doc) {
+            Segment segment = new Segment();
+            segment.setPartialReturn(true);
+            boolean inWord = false;
+            int pos = 0;
+            int length = doc.getLength();
+            try {
+                while (pos < length) {
+                    doc.getText(pos, length - pos, segment);
+                    for (char c = segment.first(); c != Segment.DONE; c = segment.next()) {
+                        if (c == '\n') {
+                            inWord = false;
+                            continue;
+                        }
+                        characters++;
+                        boolean wordChar = Character.isLetterOrDigit(c);
+                        if (wordChar && !inWord) {
+                            words++;
+                        }
+                        inWord = wordChar;
+                    }
+                    pos += segment.count;
+                }
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void countElements(Element elem) {
+            AttributeSet attrs = elem.getAttributes();
+            Object name = attrs.getAttribute(StyleConstants.NameAttribute);
+            if (name == HTML.Tag.P || name == HTML.Tag.IMPLIED) {
+                paragraphs++;
+            } else if (name == HTML.Tag.UL || name == HTML.Tag.OL) {
+                lists++;
+            } else if (name == HTML.Tag.LI) {
+                listItems++;
+            } else if (name == HTML.Tag.IMG) {
+                images++;
+                if (attrs.getAttribute(HTML.Attribute.SRC) instanceof String src) {
+                    int payloadStart = DataUriDecoder.getPayloadStart(src);
+                    if (payloadStart != -1) {
+                        // Every 4 base64 characters hold 3 bytes.
+                        embeddedImageBytes += (src.length() - payloadStart) * 3L / 4;
+                    }
+                }
+            }
+            for (int i = 0; i < elem.getElementCount(); i++) {
+                countElements(elem.getElement(i));
+            }
+        }
+    }
+}
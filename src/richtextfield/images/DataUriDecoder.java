@@ -0,0 +1,126 @@
+package richtextfield.images;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Decodes base64 data: URIs without copying the payload. The characters are
+ * read straight from the attribute value and streamed through a base64 decoder
+ * into the ImageReader, so no substring and no intermediate byte arrays of the
+ * encoded or decoded payload are created.
+ */
+public class DataUriDecoder {
+
+    private DataUriDecoder() {
+    }
+
+    /**
+     * Returns the index of the first payload character of a base64 data: URI,
+     * or -1 when the value is not one.
+     *
+     * @param uri
+     * @return
+     */
+    public static int getPayloadStart(CharSequence uri) {
+        if (uri == null || uri.length() < 5 || !"data:".contentEquals(uri.subSequence(0, 5))) {
+            return -1;
+        }
+        for (int i = 5; i < uri.length(); i++) {
+            if (uri.charAt(i) == ',') {
+                return i + 1 < uri.length() ? i + 1 : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Opens a stream with the decoded bytes of the payload starting at payloadStart.
+     * Line breaks inside the payload are ignored.
+     *
+     * @param uri
+     * @param payloadStart
+     * @return
+     */
+    public static InputStream openPayload(CharSequence uri, int payloadStart) {
+        return Base64.getMimeDecoder().wrap(new CharSequenceInputStream(uri, payloadStart, uri.length()));
+    }
+
+    public static BufferedImage readImage(CharSequence uri, int payloadStart) throws IOException {
+        try (InputStream in = openPayload(uri, payloadStart)) {
+            return readImage(in);
+        }
+    }
+
+    public static BufferedImage readImage(InputStream in) throws IOException {
+        // A memory cache instead of ImageIO's default temporary file.
+        try (ImageInputStream iis = new MemoryCacheImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return reader.read(0, reader.getDefaultReadParam());
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /*
+     * Exposes the characters of a sequence as bytes. Base64 payloads are ASCII
+     * so every char maps to a single byte.
+     */
+    private static class CharSequenceInputStream extends InputStream {
+
+        private final CharSequence chars;
+        private final int end;
+        private int pos;
+
+        CharSequenceInputStream(CharSequence chars, int start, int end) {
+            this.chars = chars;
+            this.pos = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() {
+            return pos < end ? chars.charAt(pos++) & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= end) {
+                return -1;
+            }
+            int n = Math.min(len, end - pos);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = (byte) chars.charAt(pos++);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - pos));
+            pos += (int) skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return end - pos;
+        }
+    }
+}
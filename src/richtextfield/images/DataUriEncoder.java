@@ -0,0 +1,107 @@
+package richtextfield.images;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Encodes images as data: URIs within the limits of an ImageInsertPolicy. It
+ * only uses ImageIO and BufferedImage, so it also works without a display.
+ */
+public class DataUriEncoder {
+
+    public static final String FORMAT_PNG = "png";
+
+    private static final Map<String, String> EMBEDDABLE_FORMATS = Map.of(
+            FORMAT_PNG, "image/png",
+            "jpeg", "image/jpeg"
+    );
+    private static final int MIN_DOWNSCALE_WIDTH = 64;
+    private static final int MAX_ENCODE_ATTEMPTS = 4;
+
+    private DataUriEncoder() {
+    }
+
+    /**
+     * Embeds the bytes as they are when the format is one the editor already
+     * displays and the image is within the policy limits, otherwise decodes
+     * them and encodes the (resampled) pixels again.
+     *
+     * @param imageBytes
+     * @param policy
+     * @param targetWidth
+     * @return
+     * @throws IOException
+     */
+    public static String encode(byte[] imageBytes, ImageInsertPolicy policy, int targetWidth) throws IOException {
+        String format = null;
+        int width = Integer.MAX_VALUE;
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBytes))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    format = reader.getFormatName().toLowerCase(Locale.ROOT);
+                    reader.setInput(iis, true, true);
+                    width = reader.getWidth(0);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+        String mimeType = format != null ? EMBEDDABLE_FORMATS.get(format) : null;
+        if (mimeType != null && width <= targetWidth && !policy.exceedsBytes(imageBytes.length)) {
+            return toDataUri(mimeType, imageBytes);
+        }
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageBytes));
+        if (image == null) {
+            throw new IOException("Formato de imagen no soportado.");
+        }
+        return encode(image, mimeType != null ? format : FORMAT_PNG, policy, targetWidth);
+    }
+
+    public static String encode(BufferedImage image, String format, ImageInsertPolicy policy, int targetWidth) throws IOException {
+        if (!EMBEDDABLE_FORMATS.containsKey(format) || image.getColorModel().hasAlpha()) {
+            format = FORMAT_PNG;
+        }
+        int width = Math.min(image.getWidth(), targetWidth);
+        byte[] encoded;
+        int attempt = 0;
+        while (true) {
+            encoded = encodeImage(width < image.getWidth() ? downscale(image, width) : image, format);
+            if (!policy.exceedsBytes(encoded.length) || width <= MIN_DOWNSCALE_WIDTH || ++attempt >= MAX_ENCODE_ATTEMPTS) {
+                break;
+            }
+            // The encoded size grows roughly with the number of pixels.
+            width = Math.max(MIN_DOWNSCALE_WIDTH,
+                    (int) (width * Math.sqrt((double) policy.getMaxBytes() / encoded.length) * 0.9));
+        }
+        return toDataUri(EMBEDDABLE_FORMATS.get(format), encoded);
+    }
+
+    public static String toDataUri(String mimeType, byte[] imageBytes) {
+        return "data:" + mimeType + ";base64," + Base64.getEncoder().encodeToString(imageBytes);
+    }
+
+    private static BufferedImage downscale(BufferedImage image, int width) {
+        int height = Math.max(1, Math.round((float) image.getHeight() * width / image.getWidth()));
+        return ImageLoader.scaleImage(image, width, height, RenderingHints.VALUE_INTERPOLATION_BILINEAR, true);
+    }
+
+    private static byte[] encodeImage(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, format, baos)) {
+            throw new IOException("No se pudo codificar la imagen como %s.".formatted(format));
+        }
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,215 @@
+package richtextfield.images;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide cache of decoded images shared by every ScaledImageView.
+ * Entries are keyed by a hash of the image payload, so the same picture pasted
+ * several times is decoded and kept in memory only once. The cache is bounded
+ * by the total decoded size and evicts the least recently used images first.
+ * Decoding runs on a small pool of daemon threads, never on the EDT, and
+ * concurrent requests for the same payload share a single decode.
+ */
+public class DecodedImageCache {
+
+    public static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024;
+
+    private static final int DIGEST_CHUNK = 8192;
+
+    private static final AtomicInteger DECODER_COUNT = new AtomicInteger();
+
+    private static final ExecutorService DECODER = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)),
+            r -> {
+                Thread t = new Thread(r, "RichTextField-ImageDecoder-" + DECODER_COUNT.incrementAndGet());
+                t.setDaemon(true);
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            });
+
+    private static final DecodedImageCache SHARED = new DecodedImageCache(DEFAULT_MAX_BYTES);
+
+    @FunctionalInterface
+    public interface Decoder {
+
+        BufferedImage decode() throws IOException;
+    }
+
+    private final LinkedHashMap<String, BufferedImage> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<BufferedImage>> pending = new ConcurrentHashMap<>();
+    // The src attribute strings live as long as their element, remembering their
+    // key avoids hashing the payload again when the views are recreated.
+    private final Map<String, String> keysBySource = Collections.synchronizedMap(new WeakHashMap<>());
+    private long maxBytes;
+    private long currentBytes = 0;
+
+    public DecodedImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static DecodedImageCache getShared() {
+        return SHARED;
+    }
+
+    public synchronized BufferedImage get(String key) {
+        return key != null ? entries.get(key) : null;
+    }
+
+    public synchronized void put(String key, BufferedImage image) {
+        if (key == null || image == null) {
+            return;
+        }
+        long size = sizeOf(image);
+        if (size > maxBytes) {
+            // Never cached: it would evict everything else and still not fit.
+            return;
+        }
+        BufferedImage previous = entries.put(key, image);
+        if (previous != null) {
+            currentBytes -= sizeOf(previous);
+        }
+        currentBytes += size;
+        evict();
+    }
+
+    /**
+     * Returns the decoded image of a source. The future is already completed
+     * when the image is in the cache, otherwise hashing and decoding are done
+     * in the background.
+     *
+     * @param source the whole src attribute
+     * @param payloadStart index of the first character of the encoded payload
+     * @param decoder
+     * @return
+     */
+    public CompletableFuture<BufferedImage> loadAsync(String source, int payloadStart, Decoder decoder) {
+        String knownKey = keysBySource.get(source);
+        if (knownKey != null) {
+            return loadAsync(knownKey, decoder);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            String key = keyOf(source, payloadStart, source.length());
+            keysBySource.put(source, key);
+            return key;
+        }, DECODER).thenCompose(key -> loadAsync(key, decoder));
+    }
+
+    public CompletableFuture<BufferedImage> loadAsync(String key, Decoder decoder) {
+        BufferedImage image = get(key);
+        if (image != null) {
+            return CompletableFuture.completedFuture(image);
+        }
+        CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+        CompletableFuture<BufferedImage> running = pending.putIfAbsent(key, future);
+        if (running != null) {
+            return running;
+        }
+        DECODER.execute(() -> {
+            try {
+                BufferedImage decoded = decoder.decode();
+                if (decoded == null) {
+                    throw new IOException("Formato de imagen no soportado.");
+                }
+                put(key, decoded);
+                future.complete(decoded);
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                pending.remove(key, future);
+            }
+        });
+        return future;
+    }
+
+    public synchronized void remove(String key) {
+        BufferedImage previous = entries.remove(key);
+        if (previous != null) {
+            currentBytes -= sizeOf(previous);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, BufferedImage>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            currentBytes -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    /*
+     * Bytes of the raster as stored, e.g. 4 per pixel for TYPE_INT_RGB even if
+     * its color model only uses 24 bits.
+     */
+    private static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        long banks = buffer.getNumBanks();
+        return banks * buffer.getSize() * (DataBuffer.getDataTypeSize(buffer.getDataType()) / 8);
+    }
+
+    /**
+     * Builds the cache key of a payload without copying it: the characters are
+     * fed to the digest in small chunks straight from the source sequence.
+     *
+     * @param payload
+     * @param start first character of the payload
+     * @param end
+     * @return
+     */
+    public static String keyOf(CharSequence payload, int start, int end) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] chunk = new byte[Math.min(DIGEST_CHUNK, Math.max(1, end - start))];
+            int pos = start;
+            while (pos < end) {
+                int n = Math.min(chunk.length, end - pos);
+                for (int i = 0; i < n; i++) {
+                    // Base64 payloads are pure ASCII.
+                    chunk[i] = (byte) payload.charAt(pos + i);
+                }
+                digest.update(chunk, 0, n);
+                pos += n;
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is mandatory on every Java platform.
+            return Integer.toHexString(payload.subSequence(start, end).toString().hashCode());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package richtextfield.images;
+
+/**
+ * Limits applied to an image before it is embedded in a document. Images over
+ * the limits are resampled once on insertion instead of carrying pixels that
+ * are never shown at that size.
+ */
+public class ImageInsertPolicy {
+
+    public static final String CLIENT_PROPERTY = "richtextfield.imageInsertPolicy";
+
+    public static final ImageInsertPolicy UNLIMITED = new ImageInsertPolicy(0, 0, false);
+
+    private static final int MIN_WIDTH = 16;
+
+    private final int maxWidth;
+    private final long maxBytes;
+    private final boolean fitToEditor;
+
+    /**
+     * @param maxWidth maximum width in pixels, 0 for no limit
+     * @param maxBytes maximum size of the encoded image, 0 for no limit
+     * @param fitToEditor limits the width to the editor width multiplied by the
+     * device pixel ratio of its screen
+     */
+    public ImageInsertPolicy(int maxWidth, long maxBytes, boolean fitToEditor) {
+        this.maxWidth = Math.max(0, maxWidth);
+        this.maxBytes = Math.max(0, maxBytes);
+        this.fitToEditor = fitToEditor;
+    }
+
+    public static ImageInsertPolicy maxWidth(int maxWidth) {
+        return new ImageInsertPolicy(maxWidth, 0, false);
+    }
+
+    public static ImageInsertPolicy maxBytes(long maxBytes) {
+        return new ImageInsertPolicy(0, maxBytes, false);
+    }
+
+    public static ImageInsertPolicy fitToEditor() {
+        return new ImageInsertPolicy(0, 0, true);
+    }
+
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean isFitToEditor() {
+        return fitToEditor;
+    }
+
+    public boolean isUnlimited() {
+        return maxWidth == 0 && maxBytes == 0 && !fitToEditor;
+    }
+
+    /**
+     * Returns the maximum width allowed for an image inserted in an editor of
+     * the given width, or Integer.MAX_VALUE when the width is not limited.
+     *
+     * @param editorWidth
+     * @param devicePixelRatio
+     * @return
+     */
+    public int getTargetWidth(int editorWidth, double devicePixelRatio) {
+        int target = maxWidth > 0 ? maxWidth : Integer.MAX_VALUE;
+        if (fitToEditor && editorWidth > 0) {
+            target = Math.min(target, (int) Math.ceil(editorWidth * Math.max(1d, devicePixelRatio)));
+        }
+        return Math.max(MIN_WIDTH, target);
+    }
+
+    public boolean exceedsBytes(long size) {
+        return maxBytes > 0 && size > maxBytes;
+    }
+}
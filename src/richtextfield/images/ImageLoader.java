@@ -2,7 +2,11 @@ package richtextfield.images;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.swing.ImageIcon;
 
 public class ImageLoader {
@@ -27,18 +31,118 @@ public class ImageLoader {
     public static final String PATH_ICON_ALIGN_JUSTIFIED = "/richtextfield/images/icons8-align-justify-16.png";
     public static final String PATH_ICON_ADD_PICTURE = "/richtextfield/images/icons8-picture-16.png";
     public static final String PATH_ICON_SCREENSHOT = "/richtextfield/images/icons8-add-camera.png";
+
+    public static final int MAX_COLOR_ICONS = 256;
+
+    // Least recently used first.
+    private static final Map<ColorIconKey, ImageIcon> COLOR_ICONS = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ColorIconKey, ImageIcon> eldest) {
+            return size() > MAX_COLOR_ICONS;
+        }
+    };
+    // Reused for the lookups, under the lock of COLOR_ICONS.
+    private static final ColorIconKey COLOR_ICON_PROBE = new ColorIconKey();
     
     
     public static ImageIcon get(String imagePath){
         return new ImageIcon(ImageLoader.class.getResource(imagePath));
     }
     
+    /**
+     * Icon filled with the color. The icons are shared by every caller, the
+     * same size and color give the same instance while it is among the last
+     * MAX_COLOR_ICONS used, so they must not be modified.
+     *
+     * @param width
+     * @param height
+     * @param color
+     * @return
+     */
     public static ImageIcon generateRectangleColorIcon( int width, int height, Color color){
+        int argb = color.getRGB();
+        synchronized (COLOR_ICONS) {
+            ImageIcon icon = COLOR_ICONS.get(COLOR_ICON_PROBE.set(width, height, argb));
+            if (icon != null) {
+                return icon;
+            }
+        }
         BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = (Graphics2D)bi.getGraphics();
         g.setColor(color);
         g.fillRect(0, 0, width, height);
         g.dispose();
-        return new ImageIcon(bi);
+        ImageIcon icon = new ImageIcon(bi);
+        synchronized (COLOR_ICONS) {
+            ImageIcon cached = COLOR_ICONS.putIfAbsent(new ColorIconKey().set(width, height, argb), icon);
+            return cached != null ? cached : icon;
+        }
+    }
+
+    /**
+     * Resamples an image to the given size. When stepped is true and the image
+     * is reduced by more than half, it is halved repeatedly before the final
+     * pass, which keeps bilinear downscaling from dropping whole pixel rows.
+     *
+     * @param source
+     * @param width
+     * @param height
+     * @param interpolation one of the RenderingHints.VALUE_INTERPOLATION_* values
+     * @param stepped
+     * @return
+     */
+    public static BufferedImage scaleImage(BufferedImage source, int width, int height, Object interpolation, boolean stepped) {
+        width = Math.max(1, width);
+        height = Math.max(1, height);
+        int type = source.getTransparency() == Transparency.OPAQUE
+                ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+        BufferedImage current = source;
+        int currentWidth = source.getWidth();
+        int currentHeight = source.getHeight();
+        do {
+            if (stepped && currentWidth / 2 >= width && currentHeight / 2 >= height) {
+                currentWidth /= 2;
+                currentHeight /= 2;
+            } else {
+                currentWidth = width;
+                currentHeight = height;
+            }
+            BufferedImage step = new BufferedImage(currentWidth, currentHeight, type);
+            Graphics2D g = step.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+            g.dispose();
+            current = step;
+        } while (currentWidth != width || currentHeight != height);
+        return current;
+    }
+
+    /*
+     * Mutable so that a lookup allocates nothing, the keys in the map are never
+     * changed.
+     */
+    private static final class ColorIconKey {
+
+        private int width;
+        private int height;
+        private int argb;
+
+        ColorIconKey set(int width, int height, int argb) {
+            this.width = width;
+            this.height = height;
+            this.argb = argb;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ColorIconKey key && key.width == width && key.height == height && key.argb == argb;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * width + height) * 31 + argb;
+        }
     }
 }
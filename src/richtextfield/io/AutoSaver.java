@@ -0,0 +1,182 @@
+package richtextfield.io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import javax.swing.JEditorPane;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+import javax.swing.text.html.HTMLDocument;
+import richtextfield.utils.CustomLogger;
+
+/**
+ * Saves the document of a JEditorPane to a file while it is being edited.
+ * Every change bumps a generation counter and restarts a debounce timer, so a
+ * burst of edits ends in a single save once the user stops typing. The save
+ * runs on a background thread through DocumentFiles, and it is skipped when the
+ * document has not changed since the last file was written. The document is
+ * serialized once per save, under its read lock.
+ */
+public class AutoSaver {
+
+    public static final int DEFAULT_DELAY = 2000;
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "RichTextField-AutoSaver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Timer timer;
+    private final AtomicLong generation = new AtomicLong();
+    private final DocumentListener documentListener = new DocumentListener() {
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            changed();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            changed();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            changed();
+        }
+    };
+
+    private Document document;
+    private volatile Path target;
+    private volatile boolean force = false;
+    // Only written by the WRITER thread.
+    private volatile long savedGeneration = 0;
+    private Path savedTarget;
+
+    public AutoSaver(JEditorPane editor) {
+        this.timer = new Timer(DEFAULT_DELAY, e -> save());
+        this.timer.setRepeats(false);
+        editor.addPropertyChangeListener("document", e -> setDocument((Document) e.getNewValue()));
+        setDocument(editor.getDocument());
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    /**
+     * Binds the file the document is saved to, or stops saving when null. The
+     * format is chosen by the extension, as in DocumentFiles.save.
+     *
+     * @param target
+     */
+    public void setTarget(Path target) {
+        this.target = target;
+        if (target == null) {
+            timer.stop();
+        } else if (generation.get() > 0) {
+            timer.restart();
+        }
+    }
+
+    public int getDelay() {
+        return timer.getInitialDelay();
+    }
+
+    /**
+     * @param delay milliseconds without changes before the document is saved
+     */
+    public void setDelay(int delay) {
+        timer.setInitialDelay(Math.max(0, delay));
+    }
+
+    public boolean isForce() {
+        return force;
+    }
+
+    /**
+     * @param force forces each save to the storage device before it replaces
+     * the previous file
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    /**
+     * Returns true while there are changes that have not been written yet.
+     *
+     * @return
+     */
+    public boolean isDirty() {
+        return generation.get() != savedGeneration;
+    }
+
+    /**
+     * Saves the pending changes now instead of waiting for the timer.
+     *
+     * @return completes with true when a file was written and false when there
+     * was nothing new to write
+     */
+    public CompletableFuture<Boolean> saveNow() {
+        timer.stop();
+        return save();
+    }
+
+    /**
+     * Stops listening to the editor. Pending changes are not saved.
+     */
+    public void dispose() {
+        timer.stop();
+        setDocument(null);
+    }
+
+    private void setDocument(Document doc) {
+        if (document != null) {
+            document.removeDocumentListener(documentListener);
+        }
+        document = doc;
+        timer.stop();
+        if (doc != null) {
+            doc.addDocumentListener(documentListener);
+        }
+    }
+
+    private void changed() {
+        generation.incrementAndGet();
+        if (target != null) {
+            timer.restart();
+        }
+    }
+
+    private CompletableFuture<Boolean> save() {
+        Path path = target;
+        if (path == null || !(document instanceof HTMLDocument doc)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        long current = generation.get();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return write(doc, path, current);
+            } catch (IOException e) {
+                CustomLogger.print(AutoSaver.class, Level.WARNING, "Error al autoguardar el documento en:\n%s".formatted(path), e);
+                throw new IllegalStateException(e);
+            }
+        }, WRITER);
+    }
+
+    private boolean write(HTMLDocument doc, Path path, long current) throws IOException {
+        if (current == savedGeneration && path.equals(savedTarget)) {
+            return false;
+        }
+        DocumentFiles.save(doc, path, force);
+        savedTarget = path;
+        savedGeneration = current;
+        return true;
+    }
+}
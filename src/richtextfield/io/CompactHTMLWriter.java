@@ -0,0 +1,272 @@
+package richtextfield.io;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.MutableAttributeSet;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.CSS;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLWriter;
+
+/**
+ * HTMLWriter that writes smaller markup than the default one. Nothing is
+ * indented or wrapped and line breaks are only written inside pre. The
+ * character styles are written as CSS in a span instead of font tags, so the
+ * background color is not lost; a style used by more than one run becomes a
+ * class of a style block in the head. Adjacent runs with the same attributes
+ * share their tags, as in HTMLWriter.
+ */
+public class CompactHTMLWriter extends HTMLWriter {
+
+    private static final String CLASS_PREFIX = "s";
+
+    private final boolean completeDocument;
+    // Declaration -> class name, in the order they are first used.
+    private final Map<String, String> classes = new LinkedHashMap<>();
+    private int preDepth = 0;
+    private boolean paragraphEnd = false;
+    private AttributeSet lastAttributes;
+    private AttributeSet lastConverted;
+
+    // setIndentSpace and setLineLength only set fields of HTMLWriter.
+    @SuppressWarnings("this-escape")
+    public CompactHTMLWriter(Writer w, HTMLDocument doc, int pos, int len) {
+        super(w, doc, pos, len);
+        completeDocument = pos == 0 && len == doc.getLength();
+        setIndentSpace(0);
+        setLineLength(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void write() throws IOException, BadLocationException {
+        HTMLDocument doc = (HTMLDocument) getDocument();
+        // The classes can only be declared when the head is written.
+        if (completeDocument && findHead(doc.getDefaultRootElement())) {
+            collectClasses(doc);
+        }
+        super.write();
+    }
+
+    @Override
+    protected void startTag(Element elem) throws IOException, BadLocationException {
+        if (matchNameAttribute(elem.getAttributes(), HTML.Tag.PRE)) {
+            preDepth++;
+        }
+        super.startTag(elem);
+        if (!classes.isEmpty() && matchNameAttribute(elem.getAttributes(), HTML.Tag.HEAD)) {
+            writeClasses();
+        }
+    }
+
+    @Override
+    protected void endTag(Element elem) throws IOException {
+        if (matchNameAttribute(elem.getAttributes(), HTML.Tag.PRE)) {
+            preDepth--;
+        }
+        super.endTag(elem);
+    }
+
+    @Override
+    protected void emptyTag(Element elem) throws BadLocationException, IOException {
+        // The newline that ends a paragraph is not written, so neither are its styles.
+        paragraphEnd = preDepth == 0 && isParagraphEnd(elem);
+        try {
+            super.emptyTag(elem);
+        } finally {
+            paragraphEnd = false;
+        }
+    }
+
+    @Override
+    protected void writeLineSeparator() throws IOException {
+        if (preDepth > 0) {
+            super.writeLineSeparator();
+        } else {
+            setCurrentLineLength(0);
+        }
+    }
+
+    @Override
+    protected void writeEmbeddedTags(AttributeSet attr) throws IOException {
+        super.writeEmbeddedTags(convert(attr));
+    }
+
+    @Override
+    protected void closeOutUnwantedEmbeddedTags(AttributeSet attr) throws IOException {
+        super.closeOutUnwantedEmbeddedTags(attr != null ? convert(attr) : null);
+    }
+
+    /*
+     * Replaces the CSS attributes with the tags HTMLWriter writes for them: b,
+     * i, u, strike, sup and sub, and a span with the rest of the declaration.
+     * Both tag methods are called in a row with the same set.
+     */
+    private AttributeSet convert(AttributeSet attr) {
+        if (attr == lastAttributes && !paragraphEnd) {
+            return lastConverted;
+        }
+        MutableAttributeSet html = new SimpleAttributeSet();
+        for (Enumeration<?> names = attr.getAttributeNames(); names.hasMoreElements();) {
+            Object name = names.nextElement();
+            if (!(name instanceof CSS.Attribute)) {
+                Object value = attr.getAttribute(name);
+                html.addAttribute(name, value instanceof AttributeSet set ? set.copyAttributes() : value);
+            }
+        }
+        if (paragraphEnd) {
+            return html;
+        }
+        // The span goes first, so it stays open around the runs that only toggle a tag.
+        String declaration = getDeclaration(attr);
+        if (!declaration.isEmpty()) {
+            MutableAttributeSet span = html.getAttribute(HTML.Tag.SPAN) instanceof AttributeSet existing
+                    ? new SimpleAttributeSet(existing) : new SimpleAttributeSet();
+            String className = classes.get(declaration);
+            if (className != null && !span.isDefined(HTML.Attribute.CLASS)) {
+                span.addAttribute(HTML.Attribute.CLASS, className);
+            } else {
+                Object style = span.getAttribute(HTML.Attribute.STYLE);
+                span.addAttribute(HTML.Attribute.STYLE, style != null ? style + "; " + declaration : declaration);
+            }
+            html.addAttribute(HTML.Tag.SPAN, span);
+        }
+        if (attr.isDefined(CSS.Attribute.FONT_WEIGHT) && StyleConstants.isBold(attr)) {
+            addTag(html, HTML.Tag.B);
+        }
+        if (attr.isDefined(CSS.Attribute.FONT_STYLE) && StyleConstants.isItalic(attr)) {
+            addTag(html, HTML.Tag.I);
+        }
+        if (attr.isDefined(CSS.Attribute.TEXT_DECORATION)) {
+            if (StyleConstants.isUnderline(attr)) {
+                addTag(html, HTML.Tag.U);
+            }
+            if (StyleConstants.isStrikeThrough(attr)) {
+                addTag(html, HTML.Tag.STRIKE);
+            }
+        }
+        if (attr.isDefined(CSS.Attribute.VERTICAL_ALIGN)) {
+            if (StyleConstants.isSuperscript(attr)) {
+                addTag(html, HTML.Tag.SUP);
+            } else if (StyleConstants.isSubscript(attr)) {
+                addTag(html, HTML.Tag.SUB);
+            }
+        }
+        lastAttributes = attr;
+        lastConverted = html;
+        return html;
+    }
+
+    private static void addTag(MutableAttributeSet html, HTML.Tag tag) {
+        if (!html.isDefined(tag)) {
+            html.addAttribute(tag, SimpleAttributeSet.EMPTY);
+        }
+    }
+
+    /*
+     * The CSS attributes left once the tags are taken out. Family and size are
+     * read through StyleConstants, the values stored by the actions do not
+     * print as CSS.
+     */
+    private static String getDeclaration(AttributeSet attr) {
+        StringBuilder css = new StringBuilder();
+        for (Enumeration<?> names = attr.getAttributeNames(); names.hasMoreElements();) {
+            if (!(names.nextElement() instanceof CSS.Attribute name)
+                    || name == CSS.Attribute.FONT_WEIGHT || name == CSS.Attribute.FONT_STYLE
+                    || name == CSS.Attribute.TEXT_DECORATION || name == CSS.Attribute.VERTICAL_ALIGN) {
+                continue;
+            }
+            String value;
+            if (name == CSS.Attribute.FONT_FAMILY) {
+                value = StyleConstants.getFontFamily(attr);
+            } else if (name == CSS.Attribute.FONT_SIZE) {
+                value = StyleConstants.getFontSize(attr) + "pt";
+            } else {
+                value = String.valueOf(attr.getAttribute(name));
+            }
+            if (value.isEmpty()) {
+                continue;
+            }
+            if (css.length() > 0) {
+                css.append("; ");
+            }
+            css.append(name).append(": ").append(value);
+        }
+        return css.toString();
+    }
+
+    /*
+     * Counts the runs of each declaration, consecutive leaves of a paragraph
+     * with the same one are a single span. Declarations used more than once
+     * get a class whose name is not taken by the style sheet of the document.
+     */
+    private void collectClasses(HTMLDocument doc) {
+        Map<String, Integer> runs = new LinkedHashMap<>();
+        countRuns(doc.getDefaultRootElement(), runs, new String[1]);
+
+        Set<String> taken = new HashSet<>();
+        for (Enumeration<?> names = doc.getStyleSheet().getStyleNames(); names.hasMoreElements();) {
+            taken.add(String.valueOf(names.nextElement()));
+        }
+        int next = 0;
+        for (Map.Entry<String, Integer> entry : runs.entrySet()) {
+            if (entry.getValue() > 1) {
+                String className;
+                do {
+                    className = CLASS_PREFIX + next++;
+                } while (taken.contains("." + className) || taken.contains(className));
+                classes.put(entry.getKey(), className);
+            }
+        }
+    }
+
+    private static void countRuns(Element elem, Map<String, Integer> runs, String[] previous) {
+        if (elem.isLeaf()) {
+            String declaration = getDeclaration(elem.getAttributes());
+            if (!declaration.isEmpty() && !declaration.equals(previous[0])) {
+                runs.merge(declaration, 1, Integer::sum);
+            }
+            previous[0] = declaration;
+            return;
+        }
+        previous[0] = null;
+        for (int i = 0; i < elem.getElementCount(); i++) {
+            countRuns(elem.getElement(i), runs, previous);
+        }
+        previous[0] = null;
+    }
+
+    private boolean isParagraphEnd(Element elem) throws BadLocationException {
+        Element parent = elem.getParentElement();
+        return elem.getEndOffset() - elem.getStartOffset() == 1
+                && matchNameAttribute(elem.getAttributes(), HTML.Tag.CONTENT)
+                && parent != null && parent.getElement(parent.getElementCount() - 1) == elem
+                && getDocument().getText(elem.getStartOffset(), 1).equals("\n");
+    }
+
+    private static boolean findHead(Element root) {
+        for (int i = 0; i < root.getElementCount(); i++) {
+            if (root.getElement(i).getAttributes().getAttribute(StyleConstants.NameAttribute) == HTML.Tag.HEAD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeClasses() throws IOException {
+        write("<style type=\"text/css\"><!--");
+        for (Map.Entry<String, String> entry : classes.entrySet()) {
+            write(" ." + entry.getValue() + " { " + entry.getKey() + " }");
+        }
+        write(" --></style>");
+    }
+}
@@ -0,0 +1,645 @@
+package richtextfield.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument.ElementSpec;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.Style;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyleContext;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+import javax.swing.text.html.StyleSheet;
+import richtextfield.images.DataUriDecoder;
+import richtextfield.images.DecodedImageCache;
+import richtextfield.utils.CustomLogger;
+
+/**
+ * Binary snapshots of parsed documents, to open them again without running the
+ * HTML parser. An entry holds the text, the distinct attribute sets and the
+ * element tree of a document, which is rebuilt with a single batch of
+ * ElementSpecs. An entry is only used while the size and modification time of
+ * the source file are the ones it was taken from.
+ * <p>
+ * The data: URIs of the images are kept out of the entries, in files named by
+ * the hash of their payload (the key of DecodedImageCache), so an image is
+ * stored once for every document and every save that contains it. Every entry
+ * lists the images it refers to, and the images no entry refers to any more
+ * are deleted when an entry is invalidated or replaced. When the entries and
+ * images take more than the maximum bytes, the least recently used entries are
+ * deleted.
+ */
+public class DocumentCache {
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final int MAGIC = 0x52544333; // RTC3
+    private static final String ENTRY_EXTENSION = ".rtc";
+    private static final String IMAGES = "images";
+    // Stored in place of the src of an image: marker, payload key and the data: URI header.
+    private static final char IMAGE_MARKER = '\u0000';
+    private static final int KEY_LENGTH = 64;
+    /*
+     * Classes of the attribute sets written by StyleContext.writeAttributeSet:
+     * the keys and the values that are not registered as static keys.
+     */
+    static final ObjectInputFilter ATTRIBUTES_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=16;java.lang.String;java.lang.Number;java.lang.Integer;java.lang.Long;java.lang.Float;"
+            + "java.lang.Double;java.lang.Boolean;java.awt.Color;javax.swing.text.SimpleAttributeSet;"
+            + "javax.swing.text.html.CSS;javax.swing.text.html.CSS$*;javax.swing.text.html.HTML$UnknownTag;!*");
+
+    private static volatile DocumentCache shared;
+
+    // Null for the documents written with their images inline.
+    private final Path directory;
+    // Stores share it, a sweep takes it alone so it never deletes an image an entry being written refers to.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile long maxBytes;
+    // Bytes of the cache after the last sweep plus the bytes stored since, -1 before the first sweep.
+    private final AtomicLong currentBytes = new AtomicLong(-1);
+
+    public DocumentCache(Path directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param directory
+     * @param maxBytes bytes of the entries and images kept in the directory
+     */
+    public DocumentCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /*
+     * Copies what writeInline writes of a document, with its images inline,
+     * e.g. for the snapshots of EditJournal. Called under the read lock of the
+     * document, the copy is written after releasing it.
+     */
+    static Content copyInline(HTMLDocument doc) throws BadLocationException {
+        Attributes tables = new Attributes();
+        try {
+            new DocumentCache(null).collectAttributes(doc.getDefaultRootElement(), tables);
+        } catch (IOException e) {
+            // Only images written to the directory of a cache can fail.
+            throw new IllegalStateException(e);
+        }
+        return copyDocument(doc, tables);
+    }
+
+    /*
+     * Writes a copy in the format of the entries. readInline rebuilds the same
+     * text and elements, so an offset of the document is the same offset in
+     * the copy, which a parse of its HTML does not guarantee.
+     */
+    static void writeInline(ObjectOutputStream out, Content content) throws IOException {
+        writeDocument(out, content);
+    }
+
+    static HTMLDocument readInline(ObjectInputStream in, HTMLEditorKit kit) throws IOException, ClassNotFoundException {
+        return new DocumentCache(null).readDocument(in, kit);
+    }
+
+    /**
+     * Returns the cache used by HTMLDocumentLoader, null unless one was set.
+     *
+     * @return
+     */
+    public static DocumentCache getShared() {
+        return shared;
+    }
+
+    public static void setShared(DocumentCache cache) {
+        shared = cache;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        sweep();
+    }
+
+    /**
+     * Rebuilds the document of the source from its entry.
+     *
+     * @param source
+     * @param kit the kit that will edit the document
+     * @return the document, or null when there is no valid entry
+     */
+    public HTMLDocument load(Path source, HTMLEditorKit kit) {
+        Path entry = getEntry(source);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry), DocumentFiles.BUFFER_SIZE))) {
+                if (in.readInt() != MAGIC || in.readLong() != attributes.size()
+                        || in.readLong() != attributes.lastModifiedTime().toMillis()) {
+                    return null;
+                }
+                in.skipNBytes((long) in.readInt() * KEY_LENGTH);
+                ObjectInputStream objects = new ObjectInputStream(in);
+                objects.setObjectInputFilter(ATTRIBUTES_FILTER);
+                HTMLDocument doc = readDocument(objects, kit);
+                touch(entry);
+                return doc;
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            CustomLogger.print(DocumentCache.class, Level.WARNING, "Error al leer la caché del documento:\n%s".formatted(source), e);
+            invalidate(source);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the entry of a document just read from the source.
+     *
+     * @param source
+     * @param attributes the attributes of the source read before the document,
+     * so a file changed while it was parsed leaves a stale entry that is never
+     * used
+     * @param doc
+     */
+    public void store(Path source, BasicFileAttributes attributes, HTMLDocument doc) {
+        if (doc.getLength() == 0) {
+            return;
+        }
+        Path entry = getEntry(source);
+        boolean replaced;
+        long written;
+        doc.readLock();
+        lock.readLock().lock();
+        try {
+            Files.createDirectories(directory.resolve(IMAGES));
+            replaced = Files.exists(entry);
+            Attributes tables = new Attributes();
+            collectAttributes(doc.getDefaultRootElement(), tables);
+            Content content = copyDocument(doc, tables);
+            DocumentFiles.writeAtomically(entry, false, channel -> {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), DocumentFiles.BUFFER_SIZE));
+                out.writeInt(MAGIC);
+                out.writeLong(attributes.size());
+                out.writeLong(attributes.lastModifiedTime().toMillis());
+                out.writeInt(tables.images.size());
+                for (String reference : tables.images.values()) {
+                    out.writeBytes(reference.substring(1, 1 + KEY_LENGTH));
+                }
+                ObjectOutputStream objects = new ObjectOutputStream(out);
+                writeDocument(objects, content);
+                objects.flush();
+            });
+            written = Files.size(entry) + tables.imageBytes;
+        } catch (IOException | BadLocationException e) {
+            CustomLogger.print(DocumentCache.class, Level.WARNING, "Error al guardar la caché del documento:\n%s".formatted(source), e);
+            return;
+        } finally {
+            lock.readLock().unlock();
+            doc.readUnlock();
+        }
+        long bytes = currentBytes.get() == -1 ? -1 : currentBytes.addAndGet(written);
+        if (replaced || bytes == -1 || bytes > maxBytes) {
+            sweep();
+        }
+    }
+
+    /**
+     * Deletes the entry of the source, and the images only it referred to.
+     *
+     * @param source
+     */
+    public void invalidate(Path source) {
+        try {
+            if (Files.deleteIfExists(getEntry(source))) {
+                sweep();
+            }
+        } catch (IOException e) {
+            CustomLogger.print(DocumentCache.class, Level.WARNING, "Error al borrar la caché del documento:\n%s".formatted(source), e);
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries while the cache takes more than
+     * the maximum bytes, and the images no entry refers to. The most recent
+     * entry is always kept.
+     */
+    public void sweep() {
+        lock.writeLock().lock();
+        try {
+            List<Path> entries = new ArrayList<>();
+            Map<Path, FileTime> used = new HashMap<>();
+            if (Files.isDirectory(directory)) {
+                try (Stream<Path> files = Files.list(directory)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        if (isCacheFile(file, ENTRY_EXTENSION)) {
+                            entries.add(file);
+                            used.put(file, Files.getLastModifiedTime(file));
+                        }
+                    }
+                }
+            }
+            entries.sort(Comparator.comparing(used::get, Comparator.reverseOrder()));
+
+            Map<String, Long> images = new HashMap<>();
+            Path imageDirectory = directory.resolve(IMAGES);
+            if (Files.isDirectory(imageDirectory)) {
+                try (Stream<Path> files = Files.list(imageDirectory)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        if (isCacheFile(file, "") && file.getFileName().toString().length() == KEY_LENGTH) {
+                            images.put(file.getFileName().toString(), Files.size(file));
+                        }
+                    }
+                }
+            }
+
+            Set<String> referenced = new HashSet<>();
+            long total = 0;
+            for (Path entry : entries) {
+                List<String> keys = readImageKeys(entry);
+                long bytes = keys != null ? Files.size(entry) : 0;
+                if (keys != null) {
+                    for (String key : keys) {
+                        if (!referenced.contains(key)) {
+                            bytes += images.getOrDefault(key, 0L);
+                        }
+                    }
+                }
+                if (keys == null || (total > 0 && total + bytes > maxBytes)) {
+                    Files.deleteIfExists(entry);
+                    continue;
+                }
+                referenced.addAll(keys);
+                total += bytes;
+            }
+            for (String key : images.keySet()) {
+                if (!referenced.contains(key)) {
+                    Files.deleteIfExists(imageDirectory.resolve(key));
+                }
+            }
+            currentBytes.set(total);
+        } catch (IOException e) {
+            CustomLogger.print(DocumentCache.class, Level.WARNING, "Error al limpiar la caché de documentos:\n%s".formatted(directory), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes every entry and image of the cache.
+     *
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        lock.writeLock().lock();
+        try {
+            deleteFiles(directory, ENTRY_EXTENSION);
+            deleteFiles(directory.resolve(IMAGES), "");
+            currentBytes.set(0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void deleteFiles(Path dir, String suffix) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file) && file.getFileName().toString().endsWith(suffix)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /*
+     * The image keys of an entry, null when it is not an entry of this format.
+     */
+    private static List<String> readImageKeys(Path entry) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            in.skipNBytes(2 * Long.BYTES);
+            int count = in.readInt();
+            List<String> keys = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                keys.add(new String(in.readNBytes(KEY_LENGTH), StandardCharsets.ISO_8859_1));
+            }
+            return keys;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Skips the temporary files of writeAtomically, which start with a dot.
+     */
+    private static boolean isCacheFile(Path file, String suffix) {
+        String name = file.getFileName().toString();
+        return !name.startsWith(".") && name.endsWith(suffix) && Files.isRegularFile(file);
+    }
+
+    /*
+     * Marks the entry as used for the eviction order. A failure only changes
+     * that order.
+     */
+    private static void touch(Path entry) {
+        try {
+            Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+        } catch (IOException e) {
+            // Evicted a bit earlier than it should.
+        }
+    }
+
+    private Path getEntry(Path source) {
+        String path = source.toAbsolutePath().normalize().toString();
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(path.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(hash) + ENTRY_EXTENSION);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is mandatory on every Java platform.
+            return directory.resolve(Integer.toHexString(path.hashCode()) + ENTRY_EXTENSION);
+        }
+    }
+
+    /*
+     * The parts of a document writeDocument writes. The attribute sets are
+     * copies and the element tree is already encoded, so nothing refers to the
+     * document any more.
+     */
+    static final class Content {
+
+        private final String base;
+        private final String title;
+        private final String packagePath;
+        private final List<String> rules;
+        private final String text;
+        private final List<AttributeSet> sets;
+        private final byte[] tree;
+
+        private Content(String base, String title, String packagePath, List<String> rules, String text,
+                List<AttributeSet> sets, byte[] tree) {
+            this.base = base;
+            this.title = title;
+            this.packagePath = packagePath;
+            this.rules = rules;
+            this.text = text;
+            this.sets = sets;
+            this.tree = tree;
+        }
+    }
+
+    /*
+     * Called under the read lock of the document, with its attributes already
+     * collected.
+     */
+    private static Content copyDocument(HTMLDocument doc, Attributes tables) throws BadLocationException {
+        URL base = doc.getBase();
+        return new Content(base != null ? base.toString() : null,
+                doc.getProperty(Document.TitleProperty) instanceof String title ? title : null,
+                doc.getProperty(DocumentPackage.RESOLVER_PROPERTY) instanceof DocumentPackage.Resolver resolver
+                ? resolver.getPath().toString() : null,
+                getRules(doc.getStyleSheet()),
+                doc.getText(0, doc.getLength() + 1),
+                tables.sets,
+                tables.treeBytes.toByteArray());
+    }
+
+    /*
+     * Properties, style rules, text, attribute sets and the element tree in
+     * preorder. The text includes the newline every document ends with.
+     */
+    private static void writeDocument(ObjectOutputStream out, Content content) throws IOException {
+        out.writeObject(content.base);
+        out.writeObject(content.title);
+        out.writeObject(content.packagePath);
+
+        out.writeInt(content.rules.size());
+        for (String rule : content.rules) {
+            out.writeObject(rule);
+        }
+
+        out.writeObject(content.text);
+
+        out.writeInt(content.sets.size());
+        for (AttributeSet set : content.sets) {
+            StyleContext.writeAttributeSet(out, set);
+        }
+        // The ints collectAttributes wrote, read back one by one by readElement.
+        out.write(content.tree);
+    }
+
+    /*
+     * The distinct attribute sets of a document, the references written in
+     * place of its images and its element tree.
+     */
+    private static class Attributes {
+
+        private final Map<AttributeSet, Integer> indexes = new HashMap<>();
+        private final List<AttributeSet> sets = new ArrayList<>();
+        private final Map<String, String> images = new HashMap<>();
+        private final ByteArrayOutputStream treeBytes = new ByteArrayOutputStream();
+        private final DataOutputStream tree = new DataOutputStream(treeBytes);
+        private long imageBytes;
+    }
+
+    /*
+     * Collects the attribute sets of the element and its descendants, and
+     * writes the element tree in preorder to the tree stream.
+     */
+    private void collectAttributes(Element elem, Attributes tables) throws IOException {
+        AttributeSet attrs = localAttributes(elem, tables);
+        Integer index = tables.indexes.putIfAbsent(attrs, tables.sets.size());
+        if (index == null) {
+            index = tables.sets.size();
+            tables.sets.add(attrs);
+        }
+        tables.tree.writeInt(index);
+        if (elem.isLeaf()) {
+            // Negative for leaves: -1 - number of characters.
+            tables.tree.writeInt(-1 - (elem.getEndOffset() - elem.getStartOffset()));
+            return;
+        }
+        tables.tree.writeInt(elem.getElementCount());
+        for (int i = 0; i < elem.getElementCount(); i++) {
+            collectAttributes(elem.getElement(i), tables);
+        }
+    }
+
+    /*
+     * The attributes of the element without its resolve parent. The src of an
+     * image is replaced by its key, and its payload is written to the image
+     * directory the first time it is seen.
+     */
+    private AttributeSet localAttributes(Element elem, Attributes tables) throws IOException {
+        SimpleAttributeSet attrs = new SimpleAttributeSet(elem.getAttributes());
+        attrs.removeAttribute(StyleConstants.ResolveAttribute);
+        if (directory != null && attrs.getAttribute(HTML.Attribute.SRC) instanceof String src && src.startsWith("data:")) {
+            String reference = tables.images.get(src);
+            if (reference == null) {
+                int payloadStart = DataUriDecoder.getPayloadStart(src);
+                String key = payloadStart != -1 ? DecodedImageCache.keyOf(src, payloadStart, src.length()) : null;
+                if (key == null || key.length() != KEY_LENGTH) {
+                    return attrs;
+                }
+                tables.imageBytes += writeImage(key, src, payloadStart);
+                reference = IMAGE_MARKER + key + src.substring(0, payloadStart);
+                tables.images.put(src, reference);
+            }
+            attrs.addAttribute(HTML.Attribute.SRC, reference);
+        }
+        return attrs;
+    }
+
+    /*
+     * Returns the bytes written, 0 when the image was already stored.
+     */
+    private long writeImage(String key, String src, int payloadStart) throws IOException {
+        Path file = directory.resolve(IMAGES).resolve(key);
+        if (Files.exists(file)) {
+            return 0;
+        }
+        // Base64 is ASCII, one byte per character.
+        byte[] payload = src.substring(payloadStart).getBytes(StandardCharsets.ISO_8859_1);
+        DocumentFiles.writeAtomically(file, false, channel -> Channels.newOutputStream(channel).write(payload));
+        return payload.length;
+    }
+
+    private String readImage(String reference, Map<String, String> images) throws IOException {
+        String key = reference.substring(1, 1 + KEY_LENGTH);
+        String payload = images.get(key);
+        if (payload == null) {
+            payload = new String(Files.readAllBytes(directory.resolve(IMAGES).resolve(key)), StandardCharsets.ISO_8859_1);
+            images.put(key, payload);
+        }
+        return reference.substring(1 + KEY_LENGTH) + payload;
+    }
+
+    private static List<String> getRules(StyleSheet sheet) {
+        List<String> rules = new ArrayList<>();
+        for (Enumeration<?> names = sheet.getStyleNames(); names.hasMoreElements();) {
+            String name = String.valueOf(names.nextElement());
+            Style style = sheet.getStyle(name);
+            if (StyleContext.DEFAULT_STYLE.equals(name) || style == null) {
+                continue;
+            }
+            StringBuilder rule = new StringBuilder(name).append(" {");
+            for (Enumeration<?> keys = style.getAttributeNames(); keys.hasMoreElements();) {
+                Object key = keys.nextElement();
+                if (key != StyleConstants.NameAttribute && key != StyleConstants.ResolveAttribute) {
+                    rule.append(' ').append(key).append(": ").append(style.getAttribute(key)).append(';');
+                }
+            }
+            rules.add(rule.append(" }").toString());
+        }
+        return rules;
+    }
+
+    private HTMLDocument readDocument(ObjectInputStream in, HTMLEditorKit kit) throws IOException, ClassNotFoundException {
+        String base = (String) in.readObject();
+        String title = (String) in.readObject();
+        String packagePath = (String) in.readObject();
+
+        StyleSheet styles = new StyleSheet();
+        styles.addStyleSheet(kit.getStyleSheet());
+        int ruleCount = in.readInt();
+        for (int i = 0; i < ruleCount; i++) {
+            styles.addRule((String) in.readObject());
+        }
+
+        char[] text = ((String) in.readObject()).toCharArray();
+
+        Map<String, String> images = new HashMap<>();
+        AttributeSet[] sets = new AttributeSet[in.readInt()];
+        for (int i = 0; i < sets.length; i++) {
+            SimpleAttributeSet attrs = new SimpleAttributeSet();
+            StyleContext.readAttributeSet(in, attrs);
+            if (directory != null && attrs.getAttribute(HTML.Attribute.SRC) instanceof String src
+                    && !src.isEmpty() && src.charAt(0) == IMAGE_MARKER) {
+                attrs.addAttribute(HTML.Attribute.SRC, readImage(src, images));
+            }
+            sets[i] = attrs;
+        }
+
+        List<ElementSpec> specs = new ArrayList<>();
+        readElement(in, sets, text, new int[1], specs);
+
+        SpecDocument doc = SpecDocument.create(kit, styles);
+        if (base != null) {
+            doc.setBase(URI.create(base).toURL());
+        }
+        if (title != null) {
+            doc.putProperty(Document.TitleProperty, title);
+        }
+        if (packagePath != null) {
+            doc.putProperty(DocumentPackage.RESOLVER_PROPERTY, new DocumentPackage.Resolver(Path.of(packagePath)));
+        }
+        doc.build(specs);
+        return doc;
+    }
+
+    private static void readElement(ObjectInputStream in, AttributeSet[] sets, char[] text, int[] offset, List<ElementSpec> specs) throws IOException {
+        AttributeSet attrs = sets[in.readInt()];
+        int count = in.readInt();
+        if (count < 0) {
+            int length = -1 - count;
+            // ElementSpec copies the whole array it is given.
+            specs.add(new ElementSpec(attrs, ElementSpec.ContentType,
+                    Arrays.copyOfRange(text, offset[0], offset[0] + length), 0, length));
+            offset[0] += length;
+            return;
+        }
+        specs.add(new ElementSpec(attrs, ElementSpec.StartTagType));
+        for (int i = 0; i < count; i++) {
+            readElement(in, sets, text, offset, specs);
+        }
+        specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+    }
+}
@@ -0,0 +1,130 @@
+package richtextfield.io;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.swing.text.html.HTMLDocument;
+
+/**
+ * Saves documents to disk. The content is streamed into a temporary file next
+ * to the target, optionally forced to the storage device, and then renamed
+ * over the target. The memory used is the size of the buffers, not the size of
+ * the document, and the target is never left half written.
+ */
+public class DocumentFiles {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private DocumentFiles() {
+    }
+
+    @FunctionalInterface
+    public interface ChannelContent {
+
+        void writeTo(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Saves the document as a package when the target has the package
+     * extension and as HTML otherwise.
+     *
+     * @param doc
+     * @param target
+     * @param force
+     * @throws IOException
+     */
+    public static void save(HTMLDocument doc, Path target, boolean force) throws IOException {
+        if (DocumentPackage.isPackage(target.toFile())) {
+            DocumentPackage.write(doc, target, force);
+        } else {
+            saveHTML(doc, target, force);
+        }
+    }
+
+    public static void saveHTML(HTMLDocument doc, Path target, boolean force) throws IOException {
+        writeAtomically(target, force, channel -> {
+            Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE);
+            DocumentPackage.writeHTML(doc, writer);
+        });
+    }
+
+    /**
+     * Writes a file through a temporary file that replaces the target once it
+     * is complete. A new file gets the default permissions, an existing one
+     * keeps its permissions, and a symbolic link is written through.
+     *
+     * @param target
+     * @param force calls FileChannel.force before the rename
+     * @param content
+     * @throws IOException
+     */
+    public static void writeAtomically(Path target, boolean force, ChannelContent content) throws IOException {
+        Path absolute = target.toAbsolutePath();
+        boolean exists = Files.exists(absolute);
+        if (exists) {
+            // The file a link points to is replaced, not the link.
+            absolute = absolute.toRealPath();
+        }
+        Path temp = createTemp(absolute);
+        try {
+            if (exists) {
+                copyPermissions(absolute, temp);
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                content.writeTo(channel);
+                if (force) {
+                    channel.force(true);
+                }
+            }
+            try {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /*
+     * Files.createTempFile would make it readable by its owner only, createFile
+     * applies the default permissions of a new file.
+     */
+    private static Path createTemp(Path target) throws IOException {
+        while (true) {
+            String suffix = Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36);
+            try {
+                return Files.createFile(target.resolveSibling("." + target.getFileName() + "." + suffix + ".tmp"));
+            } catch (FileAlreadyExistsException e) {
+                // Taken by another save, try another name.
+            }
+        }
+    }
+
+    /*
+     * The temporary file replaces the target with its permissions.
+     */
+    private static void copyPermissions(Path source, Path target) throws IOException {
+        PosixFileAttributeView posix = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+        if (posix != null) {
+            Files.setPosixFilePermissions(target, posix.readAttributes().permissions());
+            return;
+        }
+        AclFileAttributeView acl = Files.getFileAttributeView(source, AclFileAttributeView.class);
+        AclFileAttributeView targetAcl = Files.getFileAttributeView(target, AclFileAttributeView.class);
+        if (acl != null && targetAcl != null) {
+            targetAcl.setAcl(acl.getAcl());
+        }
+    }
+}
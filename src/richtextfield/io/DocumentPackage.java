@@ -0,0 +1,279 @@
+package richtextfield.io;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+import richtextfield.images.DataUriDecoder;
+import richtextfield.images.DecodedImageCache;
+
+/**
+ * Packaged document format: a ZIP container with the compressed HTML and every
+ * embedded image stored once as its own entry, named after the hash of its
+ * payload. In the HTML the images are referenced as {@code package:images/<hash>.<ext>}
+ * and are only read from the package when a view needs them.
+ */
+public class DocumentPackage {
+
+    public static final String EXTENSION = "rtfz";
+    public static final String IMAGE_SCHEME = "package:";
+    public static final String RESOLVER_PROPERTY = "richtextfield.packageResolver";
+
+    private static final String CONTENT_ENTRY = "content.html";
+    private static final String IMAGES_DIR = "images/";
+
+    private DocumentPackage() {
+    }
+
+    @FunctionalInterface
+    private interface ImageSource {
+
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Gives access to the image entries of the package a document was read from.
+     * The package is opened for each read so no file handle outlives the call.
+     */
+    public static class Resolver {
+
+        private final Path path;
+
+        public Resolver(Path path) {
+            this.path = path;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public InputStream open(String entryName) throws IOException {
+            ZipFile zip = new ZipFile(path.toFile(), StandardCharsets.UTF_8);
+            try {
+                ZipEntry entry = zip.getEntry(entryName);
+                if (entry == null) {
+                    throw new IOException("No existe la imagen %s en %s".formatted(entryName, path));
+                }
+                return new FilterInputStream(zip.getInputStream(entry)) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            zip.close();
+                        }
+                    }
+                };
+            } catch (IOException | RuntimeException e) {
+                zip.close();
+                throw e;
+            }
+        }
+    }
+
+    public static boolean isPackage(File file) {
+        return file != null && file.getName().toLowerCase(Locale.ROOT).endsWith("." + EXTENSION);
+    }
+
+    public static boolean isImageReference(String src) {
+        return src != null && src.startsWith(IMAGE_SCHEME);
+    }
+
+    /**
+     * Returns the key of a referenced image in the DecodedImageCache. It is the
+     * same key the image gets when it is embedded as a data: URI.
+     *
+     * @param src
+     * @return
+     */
+    public static String getImageKey(String src) {
+        String name = src.substring(src.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        return dot != -1 ? name.substring(0, dot) : name;
+    }
+
+    public static InputStream openImage(Document doc, String src) throws IOException {
+        if (doc.getProperty(RESOLVER_PROPERTY) instanceof Resolver resolver) {
+            return resolver.open(src.substring(IMAGE_SCHEME.length()));
+        }
+        throw new IOException("El documento no procede de un paquete: %s".formatted(src));
+    }
+
+    /**
+     * Writes the document as a package. It is written to a temporary file that
+     * then replaces the target, so a document can be saved over the package it
+     * was read from.
+     *
+     * @param doc
+     * @param target
+     * @param force
+     * @throws IOException
+     */
+    public static void write(HTMLDocument doc, Path target, boolean force) throws IOException {
+        DocumentFiles.writeAtomically(target, force, channel -> write(doc, Channels.newOutputStream(channel)));
+    }
+
+    public static void write(HTMLDocument doc, OutputStream out) throws IOException {
+        Map<String, ImageSource> images = new LinkedHashMap<>();
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out, DocumentFiles.BUFFER_SIZE));
+        zip.putNextEntry(new ZipEntry(CONTENT_ENTRY));
+        Writer writer = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+        doc.readLock();
+        try {
+            new ImageReferenceHTMLWriter(writer, doc, 0, doc.getLength(),
+                    src -> toImageReference(doc, src, images)).write();
+        } catch (BadLocationException e) {
+            throw new IOException(e);
+        } finally {
+            doc.readUnlock();
+        }
+        writer.flush();
+        zip.closeEntry();
+
+        // Images are already compressed, deflating them again only costs time.
+        zip.setLevel(Deflater.NO_COMPRESSION);
+        for (Map.Entry<String, ImageSource> image : images.entrySet()) {
+            zip.putNextEntry(new ZipEntry(image.getKey()));
+            try (InputStream in = image.getValue().open()) {
+                in.transferTo(zip);
+            }
+            zip.closeEntry();
+        }
+        zip.finish();
+        zip.flush();
+    }
+
+    /**
+     * Writes the document as plain HTML, turning package references back into
+     * data: URIs.
+     *
+     * @param doc
+     * @param out
+     * @throws IOException
+     */
+    public static void writeHTML(HTMLDocument doc, Writer out) throws IOException {
+        writeHTML(doc, out, 0, -1);
+    }
+
+    /**
+     * Writes a range of the document as plain HTML.
+     *
+     * @param doc
+     * @param out
+     * @param pos
+     * @param len the length of the range, or -1 to write up to the end
+     * @throws IOException
+     */
+    public static void writeHTML(HTMLDocument doc, Writer out, int pos, int len) throws IOException {
+        doc.readLock();
+        try {
+            int length = len < 0 ? doc.getLength() - pos : len;
+            new ImageReferenceHTMLWriter(out, doc, pos, length, src -> toDataUri(doc, src)).write();
+        } catch (BadLocationException e) {
+            throw new IOException(e);
+        } finally {
+            doc.readUnlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a package into the document. Only the HTML is read, the images are
+     * resolved later from the package through the RESOLVER_PROPERTY of the document.
+     *
+     * @param source
+     * @param doc
+     * @param kit
+     * @throws IOException
+     * @throws BadLocationException
+     */
+    public static void read(Path source, HTMLDocument doc, HTMLEditorKit kit) throws IOException, BadLocationException {
+        read(source, doc, kit, (reader, length) -> reader);
+    }
+
+    /**
+     * Reads a package, letting the caller wrap the reader of the HTML entry.
+     *
+     * @param source
+     * @param doc
+     * @param kit
+     * @param decorator receives the reader and the uncompressed length of the HTML
+     * @throws IOException
+     * @throws BadLocationException
+     */
+    public static void read(Path source, HTMLDocument doc, HTMLEditorKit kit,
+            BiFunction<Reader, Long, Reader> decorator) throws IOException, BadLocationException {
+        try (ZipFile zip = new ZipFile(source.toFile(), StandardCharsets.UTF_8)) {
+            ZipEntry content = zip.getEntry(CONTENT_ENTRY);
+            if (content == null) {
+                throw new IOException("El paquete no contiene %s: %s".formatted(CONTENT_ENTRY, source));
+            }
+            doc.putProperty(RESOLVER_PROPERTY, new Resolver(source));
+            doc.putProperty("IgnoreCharsetDirective", Boolean.TRUE);
+            try (Reader reader = decorator.apply(
+                    new BufferedReader(new InputStreamReader(zip.getInputStream(content), StandardCharsets.UTF_8)),
+                    content.getSize())) {
+                kit.read(reader, doc, doc.getLength());
+            }
+        }
+    }
+
+    private static String toImageReference(Document doc, String src, Map<String, ImageSource> images) {
+        if (isImageReference(src)) {
+            String entryName = src.substring(IMAGE_SCHEME.length());
+            images.putIfAbsent(entryName, () -> openImage(doc, src));
+            return src;
+        }
+        int payloadStart = DataUriDecoder.getPayloadStart(src);
+        if (payloadStart == -1 || !src.startsWith("data:image/")) {
+            return src;
+        }
+        String entryName = IMAGES_DIR + DecodedImageCache.keyOf(src, payloadStart, src.length())
+                + "." + getExtension(src);
+        images.putIfAbsent(entryName, () -> DataUriDecoder.openPayload(src, payloadStart));
+        return IMAGE_SCHEME + entryName;
+    }
+
+    private static String toDataUri(Document doc, String src) throws IOException {
+        if (!isImageReference(src)) {
+            return src;
+        }
+        String mimeType = "image/" + src.substring(src.lastIndexOf('.') + 1);
+        try (InputStream in = openImage(doc, src)) {
+            return "data:" + mimeType + ";base64," + Base64.getEncoder().encodeToString(in.readAllBytes());
+        }
+    }
+
+    private static String getExtension(String dataUri) {
+        // data:image/<subtype>[;parameters],<payload>
+        int start = "data:image/".length();
+        int end = start;
+        while (end < dataUri.length() && Character.isLetterOrDigit(dataUri.charAt(end))) {
+            end++;
+        }
+        return end > start ? dataUri.substring(start, end).toLowerCase(Locale.ROOT) : "bin";
+    }
+}
@@ -0,0 +1,605 @@
+package richtextfield.io;
+
+import java.beans.PropertyChangeListener;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import javax.swing.JEditorPane;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyleContext;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+import richtextfield.utils.CustomLogger;
+
+/**
+ * Append-only journal of the edits made to the document of a JEditorPane, to
+ * recover the unsaved work after a crash.
+ * <p>
+ * The file starts with a snapshot of the document, its text and element tree
+ * in the format of DocumentCache so the offsets of the records point to the
+ * same text once it is read back, and continues with one
+ * record per edit: inserted text with the attributes of its runs, removed
+ * ranges and attribute changes. A record costs the size of the edit, not the
+ * size of the document. Edits that change the element structure in a way
+ * insertString and remove cannot reproduce (lists, tables, HTML inserted by the
+ * kit) are not recorded, they make the journal write a new snapshot instead.
+ * A new snapshot is also written once the records outgrow the previous one,
+ * which keeps replay time bounded.
+ * <p>
+ * Every record carries a CRC, so a record torn by a crash ends the replay
+ * instead of corrupting the recovered document. So does a record that can not
+ * be applied, the work before it is still recovered.
+ */
+public class EditJournal {
+
+    public static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+    private static final int MAGIC = 0x52544A32; // RTJ2
+    private static final byte INSERT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte ATTRIBUTES = 3;
+    // Attribute changes over larger ranges (e.g. a new style sheet) are cheaper as a snapshot.
+    private static final int MAX_ATTRIBUTES_RANGE = 256 * 1024;
+
+    private final Path file;
+    private final ExecutorService writer;
+    private final DocumentListener documentListener = new DocumentListener() {
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            journal(e);
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            journal(e);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            journal(e);
+        }
+    };
+    private final PropertyChangeListener documentPropertyListener = e -> setDocument((Document) e.getNewValue());
+
+    private JEditorPane editor;
+    private HTMLDocument document;
+    // Incremented by the listener, under the write lock of the document.
+    private volatile long sequence = 0;
+    private volatile boolean force = false;
+
+    // Only touched by the writer thread.
+    private FileChannel channel;
+    private HTMLDocument journaled;
+    private boolean stale = true;
+    private long snapshotSequence;
+    private long snapshotBytes;
+    private long recordBytes;
+
+    public EditJournal(Path file) {
+        this.file = file.toAbsolutePath();
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "RichTextField-EditJournal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public boolean isForce() {
+        return force;
+    }
+
+    /**
+     * @param force forces every record to the storage device. Without it a
+     * record survives a crash of the application but not of the system.
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    /**
+     * Starts journaling the document of the editor, and the documents set on
+     * it later. The journal is restarted with a snapshot of the document.
+     *
+     * @param editor
+     */
+    public void attach(JEditorPane editor) {
+        detach();
+        this.editor = editor;
+        editor.addPropertyChangeListener("document", documentPropertyListener);
+        setDocument(editor.getDocument());
+    }
+
+    public void detach() {
+        if (editor != null) {
+            editor.removePropertyChangeListener("document", documentPropertyListener);
+            editor = null;
+        }
+        setDocument(null);
+    }
+
+    /**
+     * Stops journaling and deletes the journal, e.g. once the document has
+     * been saved and closed normally.
+     */
+    public void discard() {
+        detach();
+        if (writer.isShutdown()) {
+            // Already closed, the channel is released by the writer.
+            deleteFile();
+            return;
+        }
+        writer.execute(() -> {
+            closeChannel();
+            deleteFile();
+        });
+        writer.shutdown();
+    }
+
+    /**
+     * Stops journaling and releases the file. The journal is kept so it can
+     * be recovered.
+     */
+    public void close() {
+        detach();
+        if (writer.isShutdown()) {
+            return;
+        }
+        writer.execute(this::closeChannel);
+        writer.shutdown();
+    }
+
+    private void deleteFile() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log("Error al borrar el diario de edición:\n%s".formatted(file), e);
+        }
+    }
+
+    /*
+     * Waits until the writer has handled the edits made so far, including the
+     * snapshots they scheduled.
+     */
+    void awaitWriter() throws InterruptedException, ExecutionException {
+        writer.submit(() -> {
+        }).get();
+        writer.submit(() -> {
+        }).get();
+    }
+
+    /**
+     * Rebuilds the document saved in a journal: the snapshot is parsed and the
+     * records written after it are applied in order.
+     *
+     * @param file
+     * @param kit
+     * @return the recovered document, or null when there is no journal. When
+     * a record can not be applied, the document as it was before that record.
+     * @throws IOException when the snapshot can not be read
+     */
+    public static HTMLDocument recover(Path file, HTMLEditorKit kit) throws IOException {
+        InputStream stream;
+        try {
+            stream = Files.newInputStream(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(stream, DocumentFiles.BUFFER_SIZE))) {
+            HTMLDocument doc = readSnapshot(in, kit);
+            try {
+                boolean applied;
+                do {
+                    applied = applyRecord(in, doc);
+                } while (applied);
+            } catch (EOFException e) {
+                // The last record was torn by the crash.
+            } catch (IOException | BadLocationException | RuntimeException e) {
+                // The work up to the record that does not apply is still recovered.
+                log("El diario de edición tiene un registro que no se puede aplicar, se recupera hasta él:\n%s".formatted(file), e);
+            }
+            return doc;
+        }
+    }
+
+    private void setDocument(Document doc) {
+        if (document != null) {
+            document.removeDocumentListener(documentListener);
+        }
+        document = doc instanceof HTMLDocument html ? html : null;
+        HTMLDocument current = document;
+        if (current != null) {
+            current.addDocumentListener(documentListener);
+        }
+        if (writer.isShutdown()) {
+            // Detached by close or discard.
+            return;
+        }
+        writer.execute(() -> {
+            journaled = current;
+            stale = true;
+            if (current != null) {
+                snapshot(current);
+            }
+        });
+    }
+
+    /*
+     * Runs under the write lock of the document, so the record is built from
+     * the state right after the edit and only then handed to the writer.
+     */
+    private void journal(DocumentEvent e) {
+        HTMLDocument doc = (HTMLDocument) e.getDocument();
+        long seq = ++sequence;
+        byte[] record;
+        try {
+            record = isStructural(e) ? null : createRecord(e, seq);
+        } catch (IOException | BadLocationException ex) {
+            // Attributes that can not be serialized, the snapshot will carry them.
+            record = null;
+        }
+        byte[] finalRecord = record;
+        writer.execute(() -> {
+            if (doc != journaled) {
+                return;
+            }
+            if (finalRecord == null) {
+                if (!stale) {
+                    stale = true;
+                    writer.execute(() -> {
+                        if (doc == journaled && stale) {
+                            snapshot(doc);
+                        }
+                    });
+                }
+            } else if (!stale && seq > snapshotSequence) {
+                append(doc, finalRecord);
+            }
+        });
+    }
+
+    private void append(HTMLDocument doc, byte[] record) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (force) {
+                channel.force(false);
+            }
+            recordBytes += record.length;
+            if (recordBytes > Math.max(MIN_COMPACT_BYTES, snapshotBytes)) {
+                snapshot(doc);
+            }
+        } catch (IOException e) {
+            log("Error al escribir el diario de edición:\n%s".formatted(file), e);
+            stale = true;
+        }
+    }
+
+    private void snapshot(HTMLDocument doc) {
+        closeChannel();
+        try {
+            DocumentFiles.writeAtomically(file, force, target -> writeSnapshot(doc, target));
+            channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            snapshotBytes = channel.size();
+            recordBytes = 0;
+            stale = false;
+        } catch (IOException e) {
+            log("Error al escribir la copia del documento en el diario de edición:\n%s".formatted(file), e);
+            stale = true;
+        }
+    }
+
+    private void writeSnapshot(HTMLDocument doc, FileChannel target) throws IOException {
+        DocumentCache.Content content;
+        // Only the copy is made under the read lock, the editor can go on while it is written.
+        doc.readLock();
+        try {
+            // The sequence can not change while the read lock is held.
+            snapshotSequence = sequence;
+            content = DocumentCache.copyInline(doc);
+        } catch (BadLocationException e) {
+            throw new IOException(e);
+        } finally {
+            doc.readUnlock();
+        }
+
+        DataOutputStream header = new DataOutputStream(Channels.newOutputStream(target));
+        header.writeInt(MAGIC);
+        header.writeLong(snapshotSequence);
+        long lengthPosition = target.position();
+        header.writeLong(0);
+        header.flush();
+
+        CRC32 crc = new CRC32();
+        CountingOutputStream counter = new CountingOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(target), DocumentFiles.BUFFER_SIZE));
+        // The text and elements as they are, the records refer to their offsets.
+        ObjectOutputStream tree = new ObjectOutputStream(new CheckedOutputStream(counter, crc));
+        DocumentCache.writeInline(tree, content);
+        tree.flush();
+        long length = counter.count;
+        new DataOutputStream(counter).writeInt((int) crc.getValue());
+        counter.flush();
+        target.write(ByteBuffer.allocate(Long.BYTES).putLong(0, length), lengthPosition);
+    }
+
+    private static HTMLDocument readSnapshot(DataInputStream in, HTMLEditorKit kit) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("No es un diario de edición");
+        }
+        in.readLong();
+        long length = in.readLong();
+        byte[] tree = in.readNBytes((int) length);
+        CRC32 crc = new CRC32();
+        crc.update(tree);
+        if (tree.length != length || in.readInt() != (int) crc.getValue()) {
+            throw new IOException("La copia del documento del diario de edición está dañada");
+        }
+        try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(tree))) {
+            objects.setObjectInputFilter(DocumentCache.ATTRIBUTES_FILTER);
+            return DocumentCache.readInline(objects, kit);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /*
+     * Record: payload length, type, sequence, payload and the CRC of the type,
+     * sequence and payload.
+     */
+    private static byte[] createRecord(DocumentEvent e, long seq) throws IOException, BadLocationException {
+        Document doc = e.getDocument();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        byte type;
+        try (ObjectOutputStream out = new ObjectOutputStream(payload)) {
+            out.writeInt(e.getOffset());
+            if (e.getType() == DocumentEvent.EventType.REMOVE) {
+                type = REMOVE;
+                out.writeInt(e.getLength());
+            } else if (e.getType() == DocumentEvent.EventType.INSERT) {
+                type = INSERT;
+                writeRuns(out, doc, e.getOffset(), e.getOffset() + e.getLength(), true);
+            } else {
+                type = ATTRIBUTES;
+                writeRuns(out, doc, e.getOffset(), e.getOffset() + e.getLength(), false);
+                writeParagraphs(out, (HTMLDocument) doc, e.getOffset(), e.getOffset() + e.getLength());
+            }
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream(payload.size() + 17);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(payload.size());
+        CRC32 crc = new CRC32();
+        DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(out, crc));
+        checked.writeByte(type);
+        checked.writeLong(seq);
+        payload.writeTo(checked);
+        out.writeInt((int) crc.getValue());
+        return record.toByteArray();
+    }
+
+    private static void writeRuns(ObjectOutputStream out, Document doc, int start, int end, boolean withText) throws IOException, BadLocationException {
+        List<Element> leaves = new ArrayList<>();
+        for (int pos = start; pos < end; pos = leaves.get(leaves.size() - 1).getEndOffset()) {
+            leaves.add(((HTMLDocument) doc).getCharacterElement(pos));
+        }
+        out.writeInt(leaves.size());
+        int pos = start;
+        for (Element leaf : leaves) {
+            int runEnd = Math.min(end, leaf.getEndOffset());
+            out.writeInt(runEnd - pos);
+            if (withText) {
+                out.writeObject(doc.getText(pos, runEnd - pos));
+            }
+            StyleContext.writeAttributeSet(out, localAttributes(leaf));
+            pos = runEnd;
+        }
+    }
+
+    private static void writeParagraphs(ObjectOutputStream out, HTMLDocument doc, int start, int end) throws IOException {
+        List<Element> paragraphs = new ArrayList<>();
+        int pos = start;
+        do {
+            Element paragraph = doc.getParagraphElement(pos);
+            paragraphs.add(paragraph);
+            pos = paragraph.getEndOffset();
+        } while (pos < end && pos <= doc.getLength());
+        out.writeInt(paragraphs.size());
+        for (Element paragraph : paragraphs) {
+            out.writeInt(paragraph.getStartOffset());
+            StyleContext.writeAttributeSet(out, localAttributes(paragraph));
+        }
+    }
+
+    private static AttributeSet localAttributes(Element elem) {
+        SimpleAttributeSet attrs = new SimpleAttributeSet(elem.getAttributes());
+        attrs.removeAttribute(StyleConstants.ResolveAttribute);
+        return attrs;
+    }
+
+    private static boolean applyRecord(DataInputStream in, HTMLDocument doc) throws IOException, BadLocationException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        byte type = in.readByte();
+        long seq = in.readLong();
+        byte[] payload = in.readNBytes(length);
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, seq));
+        crc.update(payload);
+        if (payload.length != length || in.readInt() != (int) crc.getValue()) {
+            return false;
+        }
+        try (ObjectInputStream record = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            record.setObjectInputFilter(DocumentCache.ATTRIBUTES_FILTER);
+            int offset = record.readInt();
+            switch (type) {
+                case INSERT ->
+                    readRuns(record, doc, offset, true);
+                case REMOVE ->
+                    doc.remove(offset, record.readInt());
+                case ATTRIBUTES -> {
+                    readRuns(record, doc, offset, false);
+                    readParagraphs(record, doc);
+                }
+                default ->
+                    throw new IOException("Registro desconocido en el diario de edición: %d".formatted(type));
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        return true;
+    }
+
+    /*
+     * Inserts the runs written by writeRuns with their text, or sets their
+     * attributes on the text already at offset.
+     */
+    private static void readRuns(ObjectInputStream in, HTMLDocument doc, int offset, boolean withText)
+            throws IOException, ClassNotFoundException, BadLocationException {
+        int runs = in.readInt();
+        for (int i = 0; i < runs; i++) {
+            int runLength = in.readInt();
+            String text = withText ? (String) in.readObject() : null;
+            SimpleAttributeSet attrs = new SimpleAttributeSet();
+            StyleContext.readAttributeSet(in, attrs);
+            if (withText) {
+                doc.insertString(offset, text, attrs);
+            } else {
+                doc.setCharacterAttributes(offset, runLength, attrs, true);
+            }
+            offset += runLength;
+        }
+    }
+
+    private static void readParagraphs(ObjectInputStream in, HTMLDocument doc) throws IOException, ClassNotFoundException {
+        int paragraphs = in.readInt();
+        for (int i = 0; i < paragraphs; i++) {
+            int start = in.readInt();
+            SimpleAttributeSet attrs = new SimpleAttributeSet();
+            StyleContext.readAttributeSet(in, attrs);
+            // A length of 0 only reaches the paragraph at start.
+            doc.setParagraphAttributes(start, 0, attrs, true);
+        }
+    }
+
+    /*
+     * Typing, deleting and splitting paragraphs only add or remove leaves and
+     * paragraphs. Any other branch in the change means the edit was made by
+     * inserting HTML or moving elements, and replaying it as text would not
+     * rebuild the same tree.
+     */
+    private static boolean isStructural(DocumentEvent e) {
+        if (e.getType() == DocumentEvent.EventType.CHANGE && e.getLength() > MAX_ATTRIBUTES_RANGE) {
+            return true;
+        }
+        int start = Math.max(0, e.getOffset() - 1);
+        int end = e.getType() == DocumentEvent.EventType.REMOVE ? e.getOffset() + 1 : e.getOffset() + e.getLength() + 1;
+        return isStructural(e, e.getDocument().getDefaultRootElement(), start, end);
+    }
+
+    private static boolean isStructural(DocumentEvent e, Element elem, int start, int end) {
+        DocumentEvent.ElementChange change = e.getChange(elem);
+        if (change != null && (!isTextChange(change.getChildrenAdded()) || !isTextChange(change.getChildrenRemoved()))) {
+            return true;
+        }
+        if (elem.isLeaf() || elem.getElementCount() == 0) {
+            return false;
+        }
+        int last = elem.getElementIndex(end);
+        for (int i = elem.getElementIndex(start); i <= last; i++) {
+            Element child = elem.getElement(i);
+            if (!child.isLeaf() && isStructural(e, child, start, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTextChange(Element[] elements) {
+        for (Element elem : elements) {
+            Object name = elem.getAttributes().getAttribute(StyleConstants.NameAttribute);
+            if (!elem.isLeaf() && name != HTML.Tag.P && name != HTML.Tag.IMPLIED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log("Error al cerrar el diario de edición:\n%s".formatted(file), e);
+            }
+            channel = null;
+        }
+    }
+
+    private static void log(String msg, Throwable t) {
+        CustomLogger.print(EditJournal.class, Level.WARNING, msg, t);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
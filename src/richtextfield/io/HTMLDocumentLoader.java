@@ -0,0 +1,191 @@
+package richtextfield.io;
+
+import java.io.BufferedReader;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import javax.swing.JEditorPane;
+import javax.swing.SwingWorker;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+import richtextfield.utils.CustomLogger;
+
+/**
+ * Loads an HTML file or a document package into a JEditorPane. The file is
+ * parsed into a new HTMLDocument for the editor kit of the pane, off the EDT
+ * and without any listener attached, large files on several threads with a
+ * ParallelHTMLParser. The finished document is set on the pane with a single
+ * setDocument. The progress property goes from 0 to 100 while the file is
+ * read, and cancelling the worker stops the parsing.
+ * <p>
+ * With a DocumentCache the document is rebuilt from its entry when the file
+ * has not changed, and an entry is written after the file is parsed.
+ */
+public class HTMLDocumentLoader extends SwingWorker<HTMLDocument, Void> {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final JEditorPane target;
+    private final HTMLEditorKit kit;
+    private final Path source;
+    private final AtomicLong charactersRead = new AtomicLong();
+    private final AtomicInteger lastProgress = new AtomicInteger();
+    private DocumentCache cache = DocumentCache.getShared();
+
+    public HTMLDocumentLoader(JEditorPane target, Path source) {
+        this.target = target;
+        this.kit = (HTMLEditorKit) target.getEditorKit();
+        this.source = source;
+    }
+
+    public Path getSource() {
+        return source;
+    }
+
+    public DocumentCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @param cache the cache to use instead of the shared one, or null to
+     * always parse the file
+     */
+    public void setCache(DocumentCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    protected HTMLDocument doInBackground() throws Exception {
+        HTMLDocument doc = load((reader, length) -> new BufferedReader(new ProgressReader(reader, length), BUFFER_SIZE));
+        setProgress(100);
+        return doc;
+    }
+
+    /**
+     * Reads the document off the EDT. Can be overridden to load it some other
+     * way, e.g. with a DocumentEngine.
+     *
+     * @param decorator wraps every reader of the file with the one that counts
+     * the progress and stops the parsing when the worker is cancelled
+     * @return
+     * @throws Exception
+     */
+    protected HTMLDocument load(BiFunction<Reader, Long, Reader> decorator) throws Exception {
+        BasicFileAttributes attributes = null;
+        if (cache != null) {
+            attributes = Files.readAttributes(source, BasicFileAttributes.class);
+            HTMLDocument cached = cache.load(source, kit);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        HTMLDocument doc;
+        if (DocumentPackage.isPackage(source.toFile())) {
+            doc = (HTMLDocument) kit.createDefaultDocument();
+            doc.putProperty("IgnoreCharsetDirective", Boolean.TRUE);
+            DocumentPackage.read(source, doc, kit, decorator);
+        } else {
+            // Only a file large enough to be split is read whole before it is parsed.
+            long size = Files.size(source);
+            try (Reader in = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+                // The chunks are parsed at the same time, they count into the same progress.
+                doc = new ParallelHTMLParser(kit).read(in, size, reader -> decorator.apply(reader, size));
+            }
+        }
+        if (cache != null && !isCancelled()) {
+            cache.store(source, attributes, doc);
+        }
+        return doc;
+    }
+
+    @Override
+    protected void done() {
+        if (isCancelled()) {
+            return;
+        }
+        try {
+            target.setDocument(get());
+            target.setCaretPosition(0);
+            loaded(get());
+        } catch (InterruptedException | CancellationException ignore) {
+        } catch (ExecutionException e) {
+            failed(e.getCause() instanceof Exception cause ? cause : e);
+        }
+    }
+
+    /**
+     * Called on the EDT once the document has been set on the pane.
+     *
+     * @param doc
+     */
+    protected void loaded(HTMLDocument doc) {
+    }
+
+    /**
+     * Called on the EDT when the file could not be read.
+     *
+     * @param e
+     */
+    protected void failed(Exception e) {
+        CustomLogger.print(HTMLDocumentLoader.class, Level.SEVERE, "Error al cargar el documento:\n%s".formatted(source), e);
+    }
+
+    /*
+     * Counts the characters read to publish the progress and aborts the parsing
+     * as soon as the worker is cancelled. All the readers of a load add to the
+     * same count.
+     */
+    private class ProgressReader extends FilterReader {
+
+        private final long length;
+
+        ProgressReader(Reader in, long length) {
+            super(in);
+            this.length = Math.max(1, length);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            int c = super.read();
+            if (c != -1) {
+                count(1);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            checkCancelled();
+            int n = super.read(cbuf, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (isCancelled()) {
+                throw new InterruptedIOException("Carga cancelada: %s".formatted(source));
+            }
+        }
+
+        private void count(int n) {
+            int progress = (int) Math.min(99, charactersRead.addAndGet(n) * 100 / length);
+            if (lastProgress.getAndAccumulate(progress, Math::max) < progress) {
+                setProgress(progress);
+            }
+        }
+    }
+}
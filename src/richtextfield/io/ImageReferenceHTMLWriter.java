@@ -0,0 +1,46 @@
+package richtextfield.io;
+
+import java.io.IOException;
+import java.io.Writer;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+
+/**
+ * CompactHTMLWriter that lets the caller replace the src attribute of the images
+ * while the document is written, e.g. to swap data: URIs for references.
+ */
+public class ImageReferenceHTMLWriter extends CompactHTMLWriter {
+
+    @FunctionalInterface
+    public interface SourceMapper {
+
+        /**
+         * @param src
+         * @return the value to write, or src to leave it untouched
+         * @throws IOException
+         */
+        String map(String src) throws IOException;
+    }
+
+    private final SourceMapper sourceMapper;
+
+    public ImageReferenceHTMLWriter(Writer w, HTMLDocument doc, int pos, int len, SourceMapper sourceMapper) {
+        super(w, doc, pos, len);
+        this.sourceMapper = sourceMapper;
+    }
+
+    @Override
+    protected void writeAttributes(AttributeSet attr) throws IOException {
+        if (attr.getAttribute(HTML.Attribute.SRC) instanceof String src) {
+            String mapped = sourceMapper.map(src);
+            if (mapped != null && !mapped.equals(src)) {
+                SimpleAttributeSet copy = new SimpleAttributeSet(attr);
+                copy.addAttribute(HTML.Attribute.SRC, mapped);
+                attr = copy;
+            }
+        }
+        super.writeAttributes(attr);
+    }
+}
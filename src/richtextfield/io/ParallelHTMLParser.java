@@ -0,0 +1,446 @@
+package richtextfield.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument.ElementSpec;
+import javax.swing.text.Document;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+import javax.swing.text.html.parser.DTD;
+
+/**
+ * Parses HTML documents on several threads. The body is split before blocks
+ * that are not nested in any other element, each chunk is parsed into
+ * ElementSpecs on its own thread without building any element, and the specs
+ * are joined in order to create the element tree of a single document with
+ * one batch. The result is the document kit.read would produce, but the runs
+ * with the same attributes share them, which also makes building the tree of
+ * a document with many styled runs much faster.
+ * <p>
+ * Documents shorter than MIN_PARALLEL_LENGTH, or whose body declares styles
+ * or has tags the parser does not know, are a single chunk parsed on the
+ * calling thread.
+ */
+public class ParallelHTMLParser {
+
+    public static final int MIN_PARALLEL_LENGTH = 1024 * 1024;
+
+    private static final int MIN_CHUNK_LENGTH = 256 * 1024;
+    private static final int BUFFER_SIZE = 8192;
+    private static final String CHUNK_START = "<html><body>";
+    private static final String CHUNK_END = "</body></html>";
+
+    // Blocks a chunk can start with.
+    private static final Set<String> BLOCKS = Set.of("p", "div", "h1", "h2", "h3", "h4", "h5", "h6",
+            "ul", "ol", "dl", "table", "pre", "blockquote", "hr", "center", "address");
+    // Elements without end tag. p is also left out of the open elements, its end tag is optional.
+    private static final Set<String> EMPTY = Set.of("p", "br", "img", "hr", "input", "meta", "link", "base",
+            "area", "col", "param", "isindex", "basefont", "frame", "wbr", "embed", "source");
+    private static final Set<String> RAW_TEXT = Set.of("script", "style", "textarea", "xmp");
+    // Elements of the body that change the whole document.
+    private static final Set<String> DOCUMENT_LEVEL = Set.of("style", "link", "base", "meta", "title");
+
+    private static final AtomicInteger PARSER_COUNT = new AtomicInteger();
+
+    private static final ExecutorService PARSER = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "RichTextField-Parser-" + PARSER_COUNT.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final HTMLEditorKit kit;
+    private final int parallelism;
+
+    public ParallelHTMLParser(HTMLEditorKit kit) {
+        this(kit, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param kit
+     * @param parallelism maximum number of chunks parsed at the same time
+     */
+    public ParallelHTMLParser(HTMLEditorKit kit, int parallelism) {
+        this.kit = kit;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Parses the HTML into a new document.
+     *
+     * @param html
+     * @return
+     * @throws IOException
+     */
+    public HTMLDocument read(String html) throws IOException {
+        return read(html, UnaryOperator.identity());
+    }
+
+    /**
+     * Parses the HTML into a new document.
+     *
+     * @param html
+     * @param decorator applied to the reader of every chunk, e.g. to count the
+     * characters parsed or to abort the parsing by throwing an IOException
+     * @return
+     * @throws IOException
+     */
+    public HTMLDocument read(String html, UnaryOperator<Reader> decorator) throws IOException {
+        // Also loads the shared style sheet and DTD of the kit before the chunks use them.
+        HTMLDocument doc = (HTMLDocument) kit.createDefaultDocument();
+        doc.putProperty("IgnoreCharsetDirective", Boolean.TRUE);
+
+        List<Integer> boundaries = List.of();
+        if (parallelism > 1 && html.length() >= MIN_PARALLEL_LENGTH) {
+            Set<String> names = new HashSet<>();
+            boundaries = findBoundaries(html, names);
+            if (!areKnown(names)) {
+                boundaries = List.of();
+            }
+        }
+        HTMLDocument joined = readChunks(html, boundaries, decorator);
+        if (joined != null) {
+            return joined;
+        }
+        try (Reader in = decorator.apply(new StringReader(html))) {
+            kit.read(in, doc, 0);
+        } catch (BadLocationException e) {
+            throw new IOException(e);
+        }
+        return doc;
+    }
+
+    /**
+     * Parses the HTML read from the reader into a new document. A document
+     * shorter than MIN_PARALLEL_LENGTH, or any document with a single thread,
+     * is parsed as it is read. Otherwise, or when the length is unknown, the
+     * reader is read whole so the text can be split. The reader is not closed.
+     *
+     * @param in
+     * @param length characters of the HTML, or bytes of the file it is read
+     * from, -1 when unknown
+     * @param decorator applied to the reader of every chunk
+     * @return
+     * @throws IOException
+     */
+    public HTMLDocument read(Reader in, long length, UnaryOperator<Reader> decorator) throws IOException {
+        if (parallelism == 1 || (length >= 0 && length < MIN_PARALLEL_LENGTH)) {
+            HTMLDocument doc = (HTMLDocument) kit.createDefaultDocument();
+            doc.putProperty("IgnoreCharsetDirective", Boolean.TRUE);
+            try {
+                kit.read(decorator.apply(in), doc, 0);
+            } catch (BadLocationException e) {
+                throw new IOException(e);
+            }
+            return doc;
+        }
+        StringBuilder html = new StringBuilder();
+        char[] buffer = new char[BUFFER_SIZE];
+        for (int n; (n = in.read(buffer)) != -1;) {
+            html.append(buffer, 0, n);
+        }
+        return read(html.toString(), decorator);
+    }
+
+    private HTMLDocument readChunks(String html, List<Integer> boundaries, UnaryOperator<Reader> decorator)
+            throws IOException {
+        int count = boundaries.size() + 1;
+        Map<String, AttributeSet> sets = new ConcurrentHashMap<>();
+        List<Future<SpecDocument>> futures = new ArrayList<>(count);
+        SpecDocument[] chunks = new SpecDocument[count];
+        try {
+            for (int i = 1; i < count; i++) {
+                int start = boundaries.get(i - 1);
+                String chunk = i < count - 1
+                        ? CHUNK_START + html.substring(start, boundaries.get(i)) + CHUNK_END
+                        : CHUNK_START + html.substring(start);
+                futures.add(PARSER.submit(() -> collect(chunk, sets, decorator)));
+            }
+            // The first chunk, with the head, on the calling thread.
+            chunks[0] = collect(count > 1 ? html.substring(0, boundaries.get(0)) + CHUNK_END : html, sets, decorator);
+            for (int i = 1; i < count; i++) {
+                chunks[i] = futures.get(i - 1).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Análisis del documento interrumpido.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            } else if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<SpecDocument> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return join(chunks);
+    }
+
+    private SpecDocument collect(String chunk, Map<String, AttributeSet> sets, UnaryOperator<Reader> decorator)
+            throws IOException {
+        try (Reader in = decorator.apply(new StringReader(chunk))) {
+            return SpecDocument.collect(kit, in, sets);
+        }
+    }
+
+    /*
+     * The head and the start of the body come from the first chunk, the end of
+     * the body and of the document from the last one, and the content of the
+     * body from every chunk. Null when a chunk has no body.
+     */
+    private HTMLDocument join(SpecDocument[] chunks) {
+        List<ElementSpec> specs = new ArrayList<>();
+        for (int i = 0; i < chunks.length; i++) {
+            List<ElementSpec> collected = chunks[i].getCollected();
+            int[] body = chunks.length > 1 ? findBody(collected) : null;
+            if (chunks.length > 1 && body == null) {
+                return null;
+            }
+            int from = i == 0 ? 0 : body[0] + 1;
+            int to = i == chunks.length - 1 ? collected.size() : body[1];
+            specs.addAll(collected.subList(from, to));
+        }
+
+        SpecDocument first = chunks[0];
+        SpecDocument doc = SpecDocument.create(kit, first.getStyleSheet());
+        if (first.getBase() != null) {
+            doc.setBase(first.getBase());
+        }
+        copyProperty(first, doc, Document.TitleProperty);
+        // Comments out of the body are kept as a property, the last chunk has the ones after it.
+        Vector<Object> comments = new Vector<>();
+        for (SpecDocument chunk : chunks) {
+            if (chunk.getProperty(HTMLDocument.AdditionalComments) instanceof Vector<?> chunkComments) {
+                comments.addAll(chunkComments);
+            }
+        }
+        if (!comments.isEmpty()) {
+            doc.putProperty(HTMLDocument.AdditionalComments, comments);
+        }
+        doc.build(specs);
+        return doc;
+    }
+
+    private static void copyProperty(Document from, Document to, Object key) {
+        Object value = from.getProperty(key);
+        if (value != null) {
+            to.putProperty(key, value);
+        }
+    }
+
+    /*
+     * Indexes of the start and end specs of the body, a child of the root.
+     */
+    private static int[] findBody(List<ElementSpec> specs) {
+        int depth = 0;
+        int start = -1;
+        for (int i = 0; i < specs.size(); i++) {
+            ElementSpec spec = specs.get(i);
+            if (spec.getType() == ElementSpec.StartTagType) {
+                depth++;
+                if (depth == 2 && start == -1
+                        && spec.getAttributes().getAttribute(StyleConstants.NameAttribute) == HTML.Tag.BODY) {
+                    start = i;
+                }
+            } else if (spec.getType() == ElementSpec.EndTagType) {
+                if (depth == 2 && start != -1) {
+                    return new int[]{start, i};
+                }
+                depth--;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * The parser gives every tag it does not know the element "unknown" of the
+     * DTD shared by all the parsers, renamed after the tag. Two chunks with
+     * such tags would rename it at the same time.
+     */
+    private static boolean areKnown(Set<String> names) throws IOException {
+        DTD dtd = DTD.getDTD("html32");
+        for (String name : names) {
+            if (!dtd.elementHash.containsKey(name) || name.equals("unknown")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Offsets of the body where a chunk can start: start tags of blocks that
+     * are not inside another element, spaced so there is a chunk for every
+     * thread. Comments and the content of scripts are skipped.
+     *
+     * @param html
+     * @param names receives the name of every tag of the body
+     * @return empty when the document can not be split
+     */
+    private List<Integer> findBoundaries(String html, Set<String> names) {
+        int bodyTag = indexOfIgnoreCase(html, "<body", 0);
+        int bodyStart = bodyTag != -1 ? findTagEnd(html, bodyTag) : -1;
+        if (bodyStart == -1) {
+            return List.of();
+        }
+        int bodyEnd = html.length();
+        int chunks = Math.min(parallelism, (bodyEnd - bodyStart) / MIN_CHUNK_LENGTH);
+        if (chunks < 2) {
+            return List.of();
+        }
+
+        List<Integer> boundaries = new ArrayList<>();
+        Deque<String> open = new ArrayDeque<>();
+        long target = bodyStart + (long) (bodyEnd - bodyStart) / chunks;
+        int i = bodyStart;
+        while ((i = html.indexOf('<', i)) != -1) {
+            if (html.startsWith("<!--", i)) {
+                int end = html.indexOf("-->", i + 4);
+                if (end == -1) {
+                    break;
+                }
+                i = end + 3;
+                continue;
+            }
+            int tagStart = i;
+            int nameStart = i + 1;
+            boolean endTag = nameStart < html.length() && html.charAt(nameStart) == '/';
+            if (endTag) {
+                nameStart++;
+            }
+            int nameEnd = nameStart;
+            while (nameEnd < html.length() && isNameChar(html.charAt(nameEnd))) {
+                nameEnd++;
+            }
+            if (nameEnd == nameStart) {
+                // <!DOCTYPE ...> and friends, or a '<' in the text.
+                i = html.startsWith("<!", tagStart) ? Math.max(tagStart + 1, findTagEnd(html, tagStart)) : tagStart + 1;
+                continue;
+            }
+            int tagEnd = findTagEnd(html, tagStart);
+            if (tagEnd == -1) {
+                break;
+            }
+            String name = html.substring(nameStart, nameEnd).toLowerCase(Locale.ROOT);
+            names.add(name);
+            i = tagEnd;
+            if (endTag) {
+                if (open.contains(name)) {
+                    String closed;
+                    do {
+                        closed = open.pop();
+                    } while (!closed.equals(name));
+                }
+                continue;
+            }
+            if (DOCUMENT_LEVEL.contains(name)) {
+                // It would only reach the style sheet or properties of its chunk.
+                return List.of();
+            }
+            if (open.isEmpty() && tagStart >= target && BLOCKS.contains(name)) {
+                boundaries.add(tagStart);
+                if (boundaries.size() == chunks - 1) {
+                    break;
+                }
+                target = bodyStart + (long) (bodyEnd - bodyStart) * (boundaries.size() + 1) / chunks;
+            }
+            if (RAW_TEXT.contains(name)) {
+                int close = indexOfIgnoreCase(html, "</" + name, tagEnd);
+                if (close == -1) {
+                    break;
+                }
+                i = close;
+            } else if (!EMPTY.contains(name)) {
+                // Also <div/>, the parser does not close it either.
+                open.push(name);
+            }
+        }
+        if (!boundaries.isEmpty()) {
+            // The rest of the document only needs its tag names.
+            collectNames(html, boundaries.get(boundaries.size() - 1), names);
+        }
+        return boundaries;
+    }
+
+    private static void collectNames(String html, int from, Set<String> names) {
+        int i = from;
+        while ((i = html.indexOf('<', i)) != -1) {
+            int nameStart = i + 1;
+            if (nameStart < html.length() && html.charAt(nameStart) == '/') {
+                nameStart++;
+            }
+            int nameEnd = nameStart;
+            while (nameEnd < html.length() && isNameChar(html.charAt(nameEnd))) {
+                nameEnd++;
+            }
+            if (nameEnd > nameStart) {
+                names.add(html.substring(nameStart, nameEnd).toLowerCase(Locale.ROOT));
+            }
+            i = nameEnd;
+        }
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.';
+    }
+
+    /*
+     * Offset after the '>' that closes the tag, or -1. Quotes only start a
+     * value after '=', as for the parser.
+     */
+    private static int findTagEnd(String html, int tagStart) {
+        char quote = 0;
+        char previous = 0;
+        for (int i = tagStart + 1; i < html.length(); i++) {
+            char c = html.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if ((c == '"' || c == '\'') && previous == '=') {
+                quote = c;
+            } else if (c == '>') {
+                return i + 1;
+            }
+            if (!Character.isWhitespace(c)) {
+                previous = c;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfIgnoreCase(String html, String s, int from) {
+        for (int i = from; i <= html.length() - s.length(); i++) {
+            if (html.regionMatches(true, i, s, 0, s.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,236 @@
+package richtextfield.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.Style;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.CSS;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+import javax.swing.text.html.StyleSheet;
+
+/**
+ * HTMLDocument whose element tree is created from a list of ElementSpecs with
+ * a single batch. A collecting document keeps the batches the HTMLReader
+ * flushes instead of building them, so HTML can be parsed without creating any
+ * element, and the batches of several parses can be joined before the tree is
+ * built.
+ */
+// Only built by the parser and the cache, never serialized.
+@SuppressWarnings("serial")
+class SpecDocument extends HTMLDocument {
+
+    // HTMLDocument.IMPLIED_CR is package private.
+    private static final String IMPLIED_CR = "CR";
+
+    // Non-null while collecting.
+    private final List<ElementSpec> collected;
+
+    private SpecDocument(StyleSheet styles, boolean collecting) {
+        super(styles);
+        collected = collecting ? new ArrayList<>() : null;
+    }
+
+    /**
+     * A document configured like the ones the kit creates, with its own style
+     * sheet.
+     *
+     * @param kit
+     * @param styles rules of the document, linked to the style sheet of the kit
+     * @return
+     */
+    static SpecDocument create(HTMLEditorKit kit, StyleSheet styles) {
+        HTMLDocument template = (HTMLDocument) kit.createDefaultDocument();
+        SpecDocument doc = new SpecDocument(styles, false);
+        doc.setParser(template.getParser());
+        doc.setAsynchronousLoadPriority(template.getAsynchronousLoadPriority());
+        doc.setTokenThreshold(template.getTokenThreshold());
+        doc.putProperty("IgnoreCharsetDirective", Boolean.TRUE);
+        return doc;
+    }
+
+    /**
+     * Parses the HTML with the parser of the kit and returns the document
+     * that collected its batches. Its style sheet, base and title are set by
+     * the parse as usual.
+     *
+     * @param kit
+     * @param in
+     * @param sets attribute sets by content, shared by the parses whose specs
+     * are joined, see shareAttributes
+     * @return
+     * @throws IOException
+     */
+    static SpecDocument collect(HTMLEditorKit kit, Reader in, Map<String, AttributeSet> sets) throws IOException {
+        StyleSheet styles = new StyleSheet();
+        styles.addStyleSheet(kit.getStyleSheet());
+        SpecDocument doc = new SpecDocument(styles, true);
+        // A single batch for the whole parse.
+        doc.setTokenThreshold(Integer.MAX_VALUE);
+        doc.putProperty("IgnoreCharsetDirective", Boolean.TRUE);
+        try {
+            kit.read(in, doc, 0);
+        } catch (BadLocationException e) {
+            throw new IOException(e);
+        }
+        doc.shareAttributes(sets);
+        return doc;
+    }
+
+    List<ElementSpec> getCollected() {
+        return collected;
+    }
+
+    /*
+     * The length of a collecting document stays 0, so every flush of the
+     * HTMLReader comes here and its adjustEndElement has nothing to fix.
+     */
+    @Override
+    protected void create(ElementSpec[] data) {
+        if (collected != null) {
+            Collections.addAll(collected, data);
+        } else {
+            super.create(data);
+        }
+    }
+
+    @Override
+    protected void insert(int offset, ElementSpec[] data) throws BadLocationException {
+        if (collected != null) {
+            Collections.addAll(collected, data);
+        } else {
+            super.insert(offset, data);
+        }
+    }
+
+    /*
+     * Gives the specs with the same attributes a single set. The parser creates
+     * new CSS values for every style attribute and they have no equals, so the
+     * sets of two runs with the same style are never equal and the StyleContext
+     * of the document keeps one for each element. Worse, the hash of a set
+     * XORs its values, and the span of a run holds the same CSS value as the
+     * run: all the runs styled by one declaration get the same hash, and every
+     * element created walks all of them in the pool of the StyleContext.
+     */
+    private void shareAttributes(Map<String, AttributeSet> sets) {
+        StringBuilder key = new StringBuilder();
+        for (ListIterator<ElementSpec> specs = collected.listIterator(); specs.hasNext();) {
+            ElementSpec spec = specs.next();
+            AttributeSet attrs = spec.getAttributes();
+            key.setLength(0);
+            if (attrs == null || !describe(attrs, key)) {
+                continue;
+            }
+            AttributeSet shared = sets.putIfAbsent(key.toString(), attrs);
+            if (shared != null && shared != attrs) {
+                ElementSpec copy = new ElementSpec(shared, spec.getType(), spec.getArray(), spec.getOffset(), spec.getLength());
+                copy.setDirection(spec.getDirection());
+                specs.set(copy);
+            }
+        }
+    }
+
+    /*
+     * Appends the content of the set to the key. False when a value is not one
+     * known to be immutable and fully described by its text.
+     */
+    private static boolean describe(AttributeSet attrs, StringBuilder key) {
+        for (Enumeration<?> names = attrs.getAttributeNames(); names.hasMoreElements();) {
+            Object name = names.nextElement();
+            Object value = attrs.getAttribute(name);
+            append(key, name);
+            if (value instanceof AttributeSet set && !(value instanceof Style)) {
+                key.append('{');
+                if (!describe(set, key)) {
+                    return false;
+                }
+                key.append('}');
+            } else if (value instanceof String || value instanceof Boolean || value instanceof Number
+                    || value instanceof HTML.Tag || (value != null && value.getClass().getEnclosingClass() == CSS.class)) {
+                if (value.toString() == null) {
+                    return false;
+                }
+                append(key, value);
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void append(StringBuilder key, Object o) {
+        String text = o.toString();
+        key.append(o.getClass().getName()).append(' ').append(text.length()).append(':').append(text);
+    }
+
+    /**
+     * Creates the element tree of the document, which must be empty, and then
+     * fixes its end as HTMLReader does once it is done.
+     *
+     * @param specs the whole tree, from the start of the root to its end
+     */
+    void build(List<ElementSpec> specs) {
+        if (specs.isEmpty()) {
+            return;
+        }
+        create(specs.toArray(new ElementSpec[0]));
+        adjustEnd();
+    }
+
+    /*
+     * create() keeps the element that held the end of the empty document after
+     * the new tree, as a second body. It is replaced by a leaf at the end of the
+     * last paragraph, and the newline that ended that paragraph is removed, the
+     * new leaf holds the one every document ends with. The same steps as
+     * HTMLReader.adjustEndElement, which is private.
+     */
+    private void adjustEnd() {
+        int length = getLength();
+        if (length == 0) {
+            return;
+        }
+        writeLock();
+        try {
+            List<Element> path = new ArrayList<>();
+            for (Element elem = getDefaultRootElement(); !elem.isLeaf(); elem = elem.getElement(elem.getElementIndex(length - 1))) {
+                path.add(elem);
+            }
+            if (path.size() < 2 || path.get(1).getAttributes().getAttribute(StyleConstants.NameAttribute) != HTML.Tag.BODY
+                    || path.get(1).getEndOffset() != length) {
+                return;
+            }
+            String lastText = getText(length - 1, 1);
+            BranchElement root = (BranchElement) path.get(0);
+            root.replace(root.getElementIndex(length), 1, new Element[0]);
+
+            SimpleAttributeSet end = new SimpleAttributeSet();
+            end.addAttribute(StyleConstants.NameAttribute, HTML.Tag.CONTENT);
+            end.addAttribute(IMPLIED_CR, Boolean.TRUE);
+            BranchElement paragraph = (BranchElement) path.get(path.size() - 1);
+            paragraph.replace(paragraph.getElementCount(), 0,
+                    new Element[]{createLeafElement(paragraph, end, length, length + 1)});
+            if (lastText.equals("\n")) {
+                DefaultDocumentEvent event = new DefaultDocumentEvent(length - 1, 1, DocumentEvent.EventType.REMOVE);
+                removeUpdate(event);
+                getContent().remove(length - 1, 1);
+                postRemoveUpdate(event);
+            }
+        } catch (BadLocationException e) {
+            // The offsets come from the document itself.
+        } finally {
+            writeUnlock();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package richtextfield.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import richtextfield.utils.CustomLogger;
+
+/**
+ * Temporary file where an undo history keeps the large attribute values of its
+ * edits, e.g. the data: URIs of the images they removed, so the history does
+ * not hold them in memory. An entry is a list of strings stored as UTF-8. The
+ * file is created with the first entry. The space of the freed entries is
+ * reused by the next ones, and the file is truncated when the entries at its
+ * end are freed, so it stays close to the bytes of the live entries.
+ */
+public class UndoSpillFile {
+
+    public record Entry(long position, int length) {
+    }
+
+    private FileChannel channel;
+    private Path file;
+    private long liveBytes = 0;
+    private int liveEntries = 0;
+    // Lengths of the free regions before the end of the file, by position. Adjacent regions are merged.
+    private final TreeMap<Long, Long> freeRegions = new TreeMap<>();
+
+    /**
+     * Stores the values.
+     *
+     * @param values
+     * @return
+     * @throws IOException
+     */
+    public synchronized Entry write(List<String> values) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(payload)) {
+            out.writeInt(values.size());
+            for (String value : values) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+        if (channel == null) {
+            file = Files.createTempFile("RichTextField-undo", ".tmp");
+            file.toFile().deleteOnExit();
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        Entry entry = new Entry(allocate(payload.size()), payload.size());
+        ByteBuffer buffer = ByteBuffer.wrap(payload.toByteArray());
+        long position = entry.position();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        liveBytes += entry.length();
+        liveEntries++;
+        return entry;
+    }
+
+    /**
+     * Reads the values of the entry, in the order they were written.
+     *
+     * @param entry
+     * @return
+     * @throws IOException
+     */
+    public List<String> read(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length());
+        synchronized (this) {
+            if (channel == null) {
+                throw new IOException("El fichero temporal del historial de deshacer está cerrado");
+            }
+            long position = entry.position();
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("El fichero temporal del historial de deshacer está incompleto");
+                }
+                position += read;
+            }
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()))) {
+            int count = in.readInt();
+            List<String> values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                values.add(new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8));
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Releases an entry that will not be inserted again.
+     *
+     * @param entry
+     */
+    public synchronized void free(Entry entry) {
+        if (channel == null) {
+            return;
+        }
+        liveBytes -= entry.length();
+        long position = entry.position();
+        long length = entry.length();
+        if (--liveEntries == 0) {
+            liveBytes = 0;
+            freeRegions.clear();
+            position = 0;
+        } else {
+            Map.Entry<Long, Long> before = freeRegions.floorEntry(position);
+            if (before != null && before.getKey() + before.getValue() == position) {
+                freeRegions.remove(before.getKey());
+                position = before.getKey();
+                length += before.getValue();
+            }
+            Long after = freeRegions.remove(position + length);
+            if (after != null) {
+                length += after;
+            }
+        }
+        try {
+            if (position + length >= channel.size()) {
+                channel.truncate(position);
+            } else {
+                freeRegions.put(position, length);
+            }
+        } catch (IOException e) {
+            // Still reused by the next entries.
+            freeRegions.put(position, length);
+            log("Error al vaciar el fichero temporal del historial de deshacer:\n%s".formatted(file), e);
+        }
+    }
+
+    /*
+     * Position for an entry of the length: the first free region it fits in,
+     * or the end of the file.
+     */
+    private long allocate(int length) throws IOException {
+        for (Map.Entry<Long, Long> region : freeRegions.entrySet()) {
+            long position = region.getKey();
+            long free = region.getValue();
+            if (free >= length) {
+                freeRegions.remove(position);
+                if (free > length) {
+                    freeRegions.put(position + length, free - length);
+                }
+                return position;
+            }
+        }
+        return channel.size();
+    }
+
+    /**
+     * @return bytes of the entries not freed yet
+     */
+    public synchronized long getBytes() {
+        return liveBytes;
+    }
+
+    public synchronized int size() {
+        return liveEntries;
+    }
+
+    /**
+     * Deletes the file. The entries not freed yet are lost.
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log("Error al borrar el fichero temporal del historial de deshacer:\n%s".formatted(file), e);
+        }
+        channel = null;
+        liveBytes = 0;
+        liveEntries = 0;
+        freeRegions.clear();
+    }
+
+    private static void log(String msg, Throwable t) {
+        CustomLogger.print(UndoSpillFile.class, Level.WARNING, msg, t);
+    }
+}
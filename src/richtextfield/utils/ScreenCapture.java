@@ -7,28 +7,86 @@ package richtextfield.utils;
 import java.awt.AWTException;
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.GraphicsDevice;
 import java.awt.GraphicsEnvironment;
+import java.awt.Image;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.Robot;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
-import java.math.BigDecimal;
+import java.awt.image.MultiResolutionImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import javax.swing.ImageIcon;
+import javax.swing.JComponent;
 import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
 
 public class ScreenCapture extends JFrame implements MouseListener, MouseMotionListener {
-  
+
+    /**
+     * LIVE hides the translucent overlay and captures the selected region of the
+     * screen. FROZEN captures the whole desktop before showing the overlay and
+     * the selection is cut from that image, with no second capture.
+     */
+    public enum Mode {
+        LIVE,
+        FROZEN
+    }
+
+    private static final Color FROZEN_VEIL = new Color(0, 0, 0, 96);
+
+    private static final AtomicBoolean PREWARMED = new AtomicBoolean();
+    private static final Map<GraphicsDevice, Robot> ROBOTS = new HashMap<>();
+
+    /*
+     * Capture of the part of a region shown by one screen, at the native
+     * resolution of that screen.
+     */
+    private static class ScreenPart {
+
+        private final Rectangle bounds;
+        private final double scaleX;
+        private final double scaleY;
+        private final BufferedImage image;
+
+        ScreenPart(Rectangle bounds, double scaleX, double scaleY, BufferedImage image) {
+            this.bounds = bounds;
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+            this.image = image;
+        }
+    }
+
+    private final Mode mode;
+    // The frozen desktop while the frame is shown, not serialized.
+    private transient List<ScreenPart> desktop = null;
+
     private Point startPt;
     private Point endPt;
 
     private Rectangle imageRect = null;
     private BufferedImage buff = null;
 
-    private boolean flag = false;
+    // Completed by the frame while it is shown, not serialized.
+    private transient CompletableFuture<BufferedImage> capture = null;
 
     private int X = 0, Y = 0, WIDTH = 0, HEIGHT = 0;
     private Color selectionColor;
@@ -38,46 +96,257 @@ public class ScreenCapture extends JFrame implements MouseListener, MouseMotionL
     }
 
     public ScreenCapture(Color selectionColor) {
+        this(selectionColor, Mode.LIVE);
+    }
+
+    public ScreenCapture(Color selectionColor, Mode mode) {
 
         this.selectionColor = selectionColor;
+        this.mode = mode;
 
         startPt = new Point();
         endPt = new Point();
 
         // setting full frame size;
 //        this.setExtendedState(JFrame.MAXIMIZED_BOTH);
-        Rectangle screenRect;
-        double minX = 0, minY = 0, maxX = 0, maxY = 0;
+        // The bounds are in user space, on HiDPI screens they are smaller than the display mode;
+        Rectangle screenRect = new Rectangle();
         for (GraphicsDevice gd : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()) {
-            screenRect = gd.getDefaultConfiguration().getBounds();
-            minX = Math.min(minX, screenRect.getMinX());
-            minY = Math.min(minY, screenRect.getMinY());
-            maxX = Math.max(maxX, screenRect.getMinX() + gd.getDisplayMode().getWidth());
-            maxY = Math.max(maxY, screenRect.getMinY() + gd.getDisplayMode().getHeight());
+            screenRect = screenRect.isEmpty()
+                    ? gd.getDefaultConfiguration().getBounds()
+                    : screenRect.union(gd.getDefaultConfiguration().getBounds());
         }
-        
-        this.setLocation(BigDecimal.valueOf(minX).intValue(), BigDecimal.valueOf(minY).intValue());
-        this.setSize(BigDecimal.valueOf(maxX - minX).intValue(), BigDecimal.valueOf(maxY - minY).intValue());
+
+        this.setBounds(screenRect);
 
         // Mouse Listener and Mouse Motion listener;
         this.addMouseListener(this);
         this.addMouseMotionListener(this);
 
-        // Blurring the frame;
+        // Escape or leaving the overlay cancels the capture;
+        this.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
+                    cancelCapture();
+                }
+            }
+        });
+        this.addWindowFocusListener(new WindowAdapter() {
+            @Override
+            public void windowLostFocus(WindowEvent e) {
+                cancelCapture();
+            }
+        });
+
         this.setUndecorated(true);
-        this.setOpacity(0.2f);
+        if (mode == Mode.FROZEN) {
+            // Opaque frame showing the frozen desktop;
+            this.setContentPane(new JComponent() {
+                @Override
+                protected void paintComponent(Graphics g) {
+                    paintFrozenDesktop(g);
+                }
+            });
+        } else {
+            // Blurring the frame;
+            this.setOpacity(0.2f);
+        }
     }
 
-    public void captureImage() {
+    /**
+     * Returns the Robot of the default screen, shared by all the captures.
+     *
+     * @return
+     * @throws AWTException
+     */
+    public static Robot getRobot() throws AWTException {
+        return getRobot(GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice());
+    }
 
-        flag = false;
-        this.setVisible(true);
+    public static Robot getRobot(GraphicsDevice device) throws AWTException {
+        synchronized (ROBOTS) {
+            Robot robot = ROBOTS.get(device);
+            if (robot == null) {
+                robot = new Robot(device);
+                ROBOTS.put(device, robot);
+            }
+            return robot;
+        }
+    }
 
-        while (!flag) {
+    /**
+     * Creates the shared Robots and runs a first tiny capture in the background,
+     * so the native capture setup is not paid when the user takes a screenshot.
+     * Only the first call of the process does it, the others return at once.
+     */
+    public static void prewarm() {
+        if (GraphicsEnvironment.isHeadless() || !PREWARMED.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
             try {
-                Thread.sleep(250);
-            } catch (InterruptedException e) {
+                for (GraphicsDevice gd : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()) {
+                    Rectangle bounds = gd.getDefaultConfiguration().getBounds();
+                    getRobot(gd).createScreenCapture(new Rectangle(bounds.x, bounds.y, 1, 1));
+                }
+            } catch (AWTException | RuntimeException ex) {
+                CustomLogger.print(ScreenCapture.class, Level.WARNING, "No se pudo preparar la captura de pantalla.", ex);
+            }
+        }, "RichTextField-ScreenCapture-Prewarm");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Captures a region of the desktop, given in user space coordinates, at the
+     * native resolution of the screens. Only the screens that intersect the
+     * region are captured, each one with its own Robot.
+     *
+     * @param region
+     * @return
+     * @throws AWTException
+     */
+    public static BufferedImage captureRegion(Rectangle region) throws AWTException {
+        return compose(captureParts(region), region);
+    }
+
+    private static List<ScreenPart> captureParts(Rectangle region) throws AWTException {
+        List<ScreenPart> parts = new ArrayList<>();
+        for (GraphicsDevice gd : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()) {
+            GraphicsConfiguration gc = gd.getDefaultConfiguration();
+            Rectangle area = region.intersection(gc.getBounds());
+            if (area.isEmpty()) {
+                continue;
+            }
+            MultiResolutionImage capture = getRobot(gd).createMultiResolutionScreenCapture(area);
+            Image nativeImage = null;
+            for (Image variant : capture.getResolutionVariants()) {
+                if (nativeImage == null || variant.getWidth(null) > nativeImage.getWidth(null)) {
+                    nativeImage = variant;
+                }
+            }
+            BufferedImage image = toBufferedImage(nativeImage);
+            parts.add(new ScreenPart(area,
+                    (double) image.getWidth() / area.width,
+                    (double) image.getHeight() / area.height,
+                    image));
+        }
+        return parts;
+    }
+
+    /*
+     * Assembles the region from the screen captures. A region inside a single
+     * screen is a plain copy, across screens with different scales the result
+     * uses the highest one.
+     */
+    private static BufferedImage compose(List<ScreenPart> parts, Rectangle region) {
+        List<ScreenPart> visible = new ArrayList<>();
+        double scaleX = 0, scaleY = 0;
+        for (ScreenPart part : parts) {
+            if (part.bounds.intersects(region)) {
+                visible.add(part);
+                scaleX = Math.max(scaleX, part.scaleX);
+                scaleY = Math.max(scaleY, part.scaleY);
+            }
+        }
+        if (visible.isEmpty()) {
+            return null;
+        }
+        if (visible.size() == 1) {
+            BufferedImage crop = crop(visible.get(0), region);
+            BufferedImage copy = new BufferedImage(crop.getWidth(), crop.getHeight(), BufferedImage.TYPE_INT_RGB);
+            // The captures of a screen are not always INT_RGB, drawing converts their pixels.
+            Graphics2D g = copy.createGraphics();
+            g.drawImage(crop, 0, 0, null);
+            g.dispose();
+            return copy;
+        }
+        BufferedImage image = new BufferedImage(
+                (int) Math.ceil(region.width * scaleX), (int) Math.ceil(region.height * scaleY), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        for (ScreenPart part : visible) {
+            Rectangle area = region.intersection(part.bounds);
+            g.drawImage(crop(part, area),
+                    (int) Math.round((area.x - region.x) * scaleX),
+                    (int) Math.round((area.y - region.y) * scaleY),
+                    (int) Math.round(area.width * scaleX),
+                    (int) Math.round(area.height * scaleY),
+                    null);
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static BufferedImage crop(ScreenPart part, Rectangle region) {
+        Rectangle area = region.intersection(part.bounds);
+        int x = (int) Math.floor((area.x - part.bounds.x) * part.scaleX);
+        int y = (int) Math.floor((area.y - part.bounds.y) * part.scaleY);
+        int w = Math.max(1, Math.min(part.image.getWidth() - x, (int) Math.round(area.width * part.scaleX)));
+        int h = Math.max(1, Math.min(part.image.getHeight() - y, (int) Math.round(area.height * part.scaleY)));
+        return part.image.getSubimage(x, y, w, h);
+    }
+
+    private static BufferedImage toBufferedImage(Image image) {
+        if (image instanceof BufferedImage bufferedImage) {
+            return bufferedImage;
+        }
+        BufferedImage copy = new BufferedImage(image.getWidth(null), image.getHeight(null), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = copy.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+
+    /**
+     * Shows the selection overlay and returns a future that is completed with
+     * the selected region as soon as the mouse is released. The future is
+     * cancelled when the selection is empty or the user presses Escape or
+     * leaves the overlay; cancelling the future closes the overlay.
+     *
+     * @return
+     */
+    public CompletableFuture<BufferedImage> captureAsync() {
+        CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+        future.whenComplete((image, ex) -> {
+            if (ex instanceof CancellationException) {
+                SwingUtilities.invokeLater(this::dispose);
+            }
+        });
+        SwingUtilities.invokeLater(() -> {
+            buff = null;
+            capture = future;
+            if (mode == Mode.FROZEN) {
+                try {
+                    // Grabbed before the overlay exists, so it can never show up in the image;
+                    desktop = captureParts(this.getBounds());
+                } catch (AWTException ex) {
+                    CustomLogger.print(ScreenCapture.class, Level.SEVERE, "Error al capturar la pantalla.", ex);
+                    future.cancel(false);
+                }
+            }
+            if (!future.isDone()) {
+                this.setVisible(true);
+                this.requestFocus();
             }
+        });
+        return future;
+    }
+
+    /**
+     * Blocking variant of captureAsync, it must not be called from the EDT.
+     */
+    public void captureImage() {
+        try {
+            captureAsync().join();
+        } catch (CancellationException | CompletionException ignore) {
+        }
+    }
+
+    private void cancelCapture() {
+        if (capture != null) {
+            capture.cancel(false);
         }
     }
 
@@ -87,12 +356,43 @@ public class ScreenCapture extends JFrame implements MouseListener, MouseMotionL
 
         super.paint(g);
 
+        if (mode == Mode.FROZEN) {
+            return;
+        }
+
         setValues();
 
         g.setColor(selectionColor);
         g.fillRect(X, Y, WIDTH, HEIGHT);
     }
 
+    // dimmed desktop with the selected region shown as it is;
+    private void paintFrozenDesktop(Graphics g) {
+        if (desktop == null) {
+            return;
+        }
+        setValues();
+
+        Point location = this.getLocation();
+        for (ScreenPart part : desktop) {
+            g.drawImage(part.image, part.bounds.x - location.x, part.bounds.y - location.y,
+                    part.bounds.width, part.bounds.height, null);
+        }
+        g.setColor(FROZEN_VEIL);
+        g.fillRect(0, 0, getWidth(), getHeight());
+        if (WIDTH > 0 && HEIGHT > 0) {
+            Rectangle selection = new Rectangle(X + location.x, Y + location.y, WIDTH, HEIGHT);
+            for (ScreenPart part : desktop) {
+                Rectangle area = selection.intersection(part.bounds);
+                if (!area.isEmpty()) {
+                    g.drawImage(crop(part, area), area.x - location.x, area.y - location.y, area.width, area.height, null);
+                }
+            }
+            g.setColor(selectionColor);
+            g.drawRect(X, Y, WIDTH - 1, HEIGHT - 1);
+        }
+    }
+
     // calculating start point and width & height;
     private void setValues() {
         X = Math.min(startPt.x, endPt.x);
@@ -118,7 +418,7 @@ public class ScreenCapture extends JFrame implements MouseListener, MouseMotionL
 
         // if no any region is selected;
         if (WIDTH == 0 || HEIGHT == 0) {
-            flag = true;
+            cancelCapture();
             this.dispose();
             return;
         }
@@ -129,13 +429,25 @@ public class ScreenCapture extends JFrame implements MouseListener, MouseMotionL
         // imageRect is selected region;
         Point location = this.getLocation();
         imageRect = new Rectangle(X + location.x, Y + location.y, WIDTH, HEIGHT);
-        try {
-            // capturing image of selected region;
-            buff = new Robot().createScreenCapture(imageRect);
-        } catch (AWTException ex) {
+        if (mode == Mode.FROZEN) {
+            buff = compose(desktop, imageRect);
+            desktop = null;
+        } else {
+            try {
+                // capturing image of selected region;
+                buff = captureRegion(imageRect);
+            } catch (AWTException ex) {
+                CustomLogger.print(ScreenCapture.class, Level.SEVERE, "Error al capturar la pantalla.", ex);
+            }
         }
 
-        flag = true;
+        if (capture != null) {
+            if (buff != null) {
+                capture.complete(buff);
+            } else {
+                capture.cancel(false);
+            }
+        }
         this.dispose();
     }
 
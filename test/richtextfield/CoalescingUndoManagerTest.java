@@ -0,0 +1,146 @@
+package richtextfield;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DocumentFilter;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.undo.CannotUndoException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingUndoManagerTest {
+
+    private static final String IMAGE = "data:image/png;base64," + "A".repeat(40000);
+
+    private final ScaledHTMLEditorKit kit = new ScaledHTMLEditorKit();
+    private HTMLDocument doc;
+    private CoalescingUndoManager undoManager;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        doc = (HTMLDocument) kit.createDefaultDocument();
+        undoManager = new CoalescingUndoManager();
+        undoManager.setSpillThreshold(1000);
+        undoManager.attach(doc);
+        doc.insertString(0, "texto ", null);
+        undoManager.endTyping();
+        kit.insertHTML(doc, doc.getLength(), "<p><img src=\"" + IMAGE + "\"></p>", 0, 0, HTML.Tag.P);
+        doc.insertString(doc.getLength(), "fin", null);
+        undoManager.endTyping();
+    }
+
+    /*
+     * The src of a removed image goes to the spill file, and comes back with
+     * the image when the removal is undone.
+     */
+    @Test
+    public void undoRestoresTheSrcOfASpilledImage() throws Exception {
+        Element image = findImage();
+        doc.remove(image.getStartOffset(), 1);
+        // Small enough to spill the removed image, large enough to keep every edit.
+        undoManager.setMaxBytes(4000);
+        assertTrue(undoManager.getSpilledBytes() >= IMAGE.length());
+        assertEquals("", image.getAttributes().getAttribute(HTML.Attribute.SRC));
+
+        undoManager.undo();
+        assertEquals(IMAGE, srcOf(findImage()));
+
+        undoManager.redo();
+        assertNull(findImage());
+        assertTrue(undoManager.getSpilledBytes() >= IMAGE.length());
+
+        undoManager.undo();
+        assertEquals(IMAGE, srcOf(findImage()));
+    }
+
+    /*
+     * The image inserted by an edit that was undone is spilled as well, and
+     * put back when the insertion is redone.
+     */
+    @Test
+    public void redoRestoresTheSrcOfASpilledInsertion() throws Exception {
+        undoManager.undo();
+        undoManager.undo();
+        assertNull(findImage());
+        undoManager.setMaxBytes(4000);
+        assertTrue(undoManager.getSpilledBytes() >= IMAGE.length());
+
+        undoManager.redo();
+        assertEquals(IMAGE, srcOf(findImage()));
+        undoManager.redo();
+        assertEquals(IMAGE, srcOf(findImage()));
+    }
+
+    /*
+     * The filter the document had keeps filtering its edits, and once it is
+     * replaced the values that can not be put back keep the edit from being
+     * undone instead of losing them.
+     */
+    @Test
+    public void keepsTheFilterOfTheDocument() throws Exception {
+        HTMLDocument filtered = (HTMLDocument) kit.createDefaultDocument();
+        AtomicInteger inserts = new AtomicInteger();
+        filtered.setDocumentFilter(new DocumentFilter() {
+            @Override
+            public void insertString(FilterBypass fb, int offset, String string, AttributeSet attr) throws BadLocationException {
+                inserts.incrementAndGet();
+                super.insertString(fb, offset, string, attr);
+            }
+        });
+        doc = filtered;
+        undoManager = new CoalescingUndoManager();
+        undoManager.setSpillThreshold(1000);
+        undoManager.attach(doc);
+        doc.insertString(0, "texto ", null);
+        undoManager.endTyping();
+        assertEquals(1, inserts.get());
+        kit.insertHTML(doc, doc.getLength(), "<p><img src=\"" + IMAGE + "\"></p>", 0, 0, HTML.Tag.P);
+        doc.remove(findImage().getStartOffset(), 1);
+        undoManager.setMaxBytes(4000);
+        assertTrue(undoManager.getSpilledBytes() > 0);
+
+        doc.setDocumentFilter(null);
+        String text = doc.getText(0, doc.getLength());
+        try {
+            undoManager.undo();
+            throw new AssertionError("undo without the filter");
+        } catch (CannotUndoException e) {
+            // The values stay in the spill file.
+        }
+        assertEquals(text, doc.getText(0, doc.getLength()));
+        assertTrue(undoManager.canUndo());
+        assertTrue(undoManager.getSpilledBytes() > 0);
+    }
+
+    private Element findImage() {
+        return findImage(doc.getDefaultRootElement());
+    }
+
+    private static Element findImage(Element elem) {
+        if (elem.getAttributes().getAttribute(StyleConstants.NameAttribute) == HTML.Tag.IMG) {
+            return elem;
+        }
+        for (int i = 0; i < elem.getElementCount(); i++) {
+            Element image = findImage(elem.getElement(i));
+            if (image != null) {
+                return image;
+            }
+        }
+        return null;
+    }
+
+    private static String srcOf(Element image) {
+        assertNotNull(image);
+        return (String) image.getAttributes().getAttribute(HTML.Attribute.SRC);
+    }
+}
@@ -0,0 +1,155 @@
+package richtextfield.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Style;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyleContext;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.StyleSheet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import richtextfield.ScaledHTMLEditorKit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DocumentCacheTest {
+
+    private static final String IMAGE = "data:image/png;base64,"
+            + "iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mP8z8BQDwAEhQGAhKmMIQAAAABJRU5ErkJggg==";
+    private static final String HTML_SOURCE = "<html><head><title>Título</title>"
+            + "<style>p.nota { color: #336699; margin-left: 12px } h1 { font-size: 20pt }</style></head>"
+            + "<body><h1>Cabecera</h1><p class=\"nota\">uno <b>dos</b> <font color=\"#ff0000\" face=\"Serif\">tres</font></p>"
+            + "<p><img src=\"" + IMAGE + "\" width=\"1\" height=\"1\"> <a href=\"http://example.com\">enlace</a></p>"
+            + "<ul><li>item</li><li><i>otro</i></li></ul>"
+            + "<table border=\"1\"><tr><td>a</td><td>b</td></tr></table>"
+            + "<p><img src=\"" + IMAGE + "\"></p></body></html>";
+
+    private final ScaledHTMLEditorKit kit = new ScaledHTMLEditorKit();
+    private Path directory;
+    private Path source;
+
+    @Before
+    public void setUp() throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        directory = Files.createTempDirectory("DocumentCacheTest");
+        source = directory.resolve("documento.html");
+        Files.writeString(source, HTML_SOURCE, StandardCharsets.UTF_8);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /*
+     * A document rebuilt from its entry must be the document the parser
+     * builds: the same text, elements, attributes and style rules, with the
+     * images stored apart put back in place.
+     */
+    @Test
+    public void loadRebuildsTheParsedDocument() throws Exception {
+        DocumentCache cache = new DocumentCache(directory.resolve("cache"));
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        HTMLDocument parsed = parse();
+        cache.store(source, attributes, parsed);
+
+        HTMLDocument cached = cache.load(source, kit);
+        assertNotNull(cached);
+        assertEquals(parsed.getText(0, parsed.getLength() + 1), cached.getText(0, cached.getLength() + 1));
+        assertEquals(tree(parsed.getDefaultRootElement()), tree(cached.getDefaultRootElement()));
+        assertTrue(rules(parsed.getStyleSheet()).containsKey("p.nota"));
+        assertEquals(rules(parsed.getStyleSheet()), rules(cached.getStyleSheet()));
+        assertEquals(parsed.getProperty(Document.TitleProperty), cached.getProperty(Document.TitleProperty));
+
+        // Both images have the same payload, stored once.
+        try (Stream<Path> images = Files.list(directory.resolve("cache").resolve("images"))) {
+            assertEquals(1, images.count());
+        }
+        assertTrue(tree(cached.getDefaultRootElement()).contains(HTML.Attribute.SRC + "=" + IMAGE));
+    }
+
+    @Test
+    public void ignoresAnEntryOfAChangedSource() throws Exception {
+        DocumentCache cache = new DocumentCache(directory.resolve("cache"));
+        cache.store(source, Files.readAttributes(source, BasicFileAttributes.class), parse());
+        Files.writeString(source, HTML_SOURCE + " ", StandardCharsets.UTF_8);
+
+        assertNull(cache.load(source, kit));
+    }
+
+    private HTMLDocument parse() throws IOException, BadLocationException {
+        HTMLDocument doc = (HTMLDocument) kit.createDefaultDocument();
+        try (Reader in = new StringReader(HTML_SOURCE)) {
+            kit.read(in, doc, 0);
+        }
+        return doc;
+    }
+
+    /*
+     * Every element in preorder with its range and its attributes, without
+     * the resolve parent, sorted by name.
+     */
+    private static String tree(Element elem) {
+        StringBuilder out = new StringBuilder();
+        appendTree(out, elem, 0);
+        return out.toString();
+    }
+
+    private static void appendTree(StringBuilder out, Element elem, int depth) {
+        out.append("  ".repeat(depth)).append(elem.getName())
+                .append(" [").append(elem.getStartOffset()).append(", ").append(elem.getEndOffset()).append(") ")
+                .append(attributes(elem.getAttributes())).append('\n');
+        for (int i = 0; i < elem.getElementCount(); i++) {
+            appendTree(out, elem.getElement(i), depth + 1);
+        }
+    }
+
+    private static Map<String, String> attributes(AttributeSet attrs) {
+        Map<String, String> sorted = new TreeMap<>();
+        for (Enumeration<?> names = attrs.getAttributeNames(); names.hasMoreElements();) {
+            Object name = names.nextElement();
+            if (name != StyleConstants.ResolveAttribute) {
+                Object value = attrs.getAttribute(name);
+                sorted.put(String.valueOf(name), value instanceof AttributeSet set
+                        ? attributes(set).toString() : String.valueOf(value));
+            }
+        }
+        return sorted;
+    }
+
+    private static Map<String, Map<String, String>> rules(StyleSheet sheet) {
+        Map<String, Map<String, String>> rules = new TreeMap<>();
+        for (Enumeration<?> names = sheet.getStyleNames(); names.hasMoreElements();) {
+            String name = String.valueOf(names.nextElement());
+            Style style = sheet.getStyle(name);
+            if (!StyleContext.DEFAULT_STYLE.equals(name) && style != null) {
+                rules.put(name, attributes(style));
+            }
+        }
+        return rules;
+    }
+}
@@ -0,0 +1,104 @@
+package richtextfield.io;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import javax.swing.JEditorPane;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import richtextfield.ScaledHTMLEditorKit;
+import richtextfield.core.DocumentEngine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class EditJournalTest {
+
+    private final ScaledHTMLEditorKit kit = new ScaledHTMLEditorKit();
+    private Path file;
+    private JEditorPane editor;
+    private EditJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        file = Files.createTempFile("EditJournalTest", ".rtj");
+        editor = new JEditorPane();
+        editor.setEditorKit(kit);
+        editor.setText("<html><body><p>uno <b>dos</b> <font color=\"#ff0000\" face=\"Serif\">tres</font></p>"
+                + "<p><a href=\"http://example.com\">enlace</a></p></body></html>");
+        journal = new EditJournal(file);
+        journal.attach(editor);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        journal.close();
+        Files.deleteIfExists(file);
+    }
+
+    /*
+     * The records written after a snapshot refer to the offsets of the live
+     * document, which must be the offsets of the snapshot once it is read.
+     */
+    @Test
+    public void recoversEditsAfterStructuralSnapshots() throws Exception {
+        HTMLDocument doc = (HTMLDocument) editor.getDocument();
+        doc.insertString(0, "ab", null);
+        kit.insertHTML(doc, doc.getLength(), "<ul><li>item</li></ul>", 0, 0, HTML.Tag.UL);
+        doc.insertString(doc.getLength(), "xyz", null);
+        doc.insertString(doc.getLength(), "\nuno\ndos", null);
+        new DocumentEngine(kit).toList(doc, doc.getLength() - 7, doc.getLength(), true);
+        doc.insertString(doc.getLength(), "fin", null);
+        SimpleAttributeSet bold = new SimpleAttributeSet();
+        StyleConstants.setBold(bold, true);
+        doc.setCharacterAttributes(0, 2, bold, false);
+        doc.remove(3, 2);
+        journal.awaitWriter();
+
+        HTMLDocument recovered = EditJournal.recover(file, kit);
+        assertNotNull(recovered);
+        assertEquals(text(doc), text(recovered));
+        assertEquals(html(doc), html(recovered));
+    }
+
+    @Test
+    public void stopsAtTheFirstRecordThatDoesNotApply() throws Exception {
+        HTMLDocument doc = (HTMLDocument) editor.getDocument();
+        doc.insertString(doc.getLength(), "xyz", null);
+        journal.awaitWriter();
+        long before = Files.size(file);
+        doc.remove(doc.getLength() - 3, 3);
+        journal.awaitWriter();
+        byte[] removal = Files.readAllBytes(file);
+        String expected = text(doc);
+
+        // The same removal again, after the end of the document.
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(removal, (int) before, removal.length - (int) before));
+        }
+        HTMLDocument recovered = EditJournal.recover(file, kit);
+        assertNotNull(recovered);
+        assertEquals(expected, text(recovered));
+    }
+
+    private static String text(HTMLDocument doc) throws BadLocationException {
+        return doc.getText(0, doc.getLength());
+    }
+
+    private String html(HTMLDocument doc) throws IOException, BadLocationException {
+        StringWriter out = new StringWriter();
+        kit.write(out, doc, 0, doc.getLength());
+        return out.toString();
+    }
+}
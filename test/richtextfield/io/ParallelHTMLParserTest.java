@@ -0,0 +1,135 @@
+package richtextfield.io;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTMLDocument;
+import org.junit.Before;
+import org.junit.Test;
+import richtextfield.ScaledHTMLEditorKit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelHTMLParserTest {
+
+    private final ScaledHTMLEditorKit kit = new ScaledHTMLEditorKit();
+
+    @Before
+    public void setUp() {
+        System.setProperty("java.awt.headless", "true");
+    }
+
+    /*
+     * The chunks parsed apart and joined must give the document a single
+     * parse gives, also around comments, preformatted text and scripts.
+     */
+    @Test
+    public void splitDocumentMatchesSingleParse() throws Exception {
+        StringBuilder html = new StringBuilder("<html><head><title>Título</title></head><body>\n");
+        for (int i = 0; html.length() < 2 * ParallelHTMLParser.MIN_PARALLEL_LENGTH; i++) {
+            html.append("<p>Párrafo ").append(i).append(" con <b>negrita</b>, <i>cursiva</i> y ")
+                    .append("<font color=\"#ff0000\" face=\"Serif\">color</font>.</p>\n")
+                    .append("<!-- comentario ").append(i).append(" <p>no es un párrafo</p> -->\n")
+                    .append("<pre>  línea uno\n    línea dos\n</pre>\n")
+                    .append("<script>var s = \"<p>\" + ").append(i).append(";</script>\n")
+                    .append("<ul><li>uno</li><li><a href=\"http://example.com/").append(i).append("\">dos</a></li></ul>\n")
+                    .append("<table border=\"1\"><tr><td>a</td><td align=\"right\">b</td></tr></table>\n");
+        }
+        html.append("</body></html>\n");
+
+        AtomicInteger readers = new AtomicInteger();
+        HTMLDocument parallel = new ParallelHTMLParser(kit, 4).read(html.toString(), reader -> {
+            readers.incrementAndGet();
+            return reader;
+        });
+        HTMLDocument single = new ParallelHTMLParser(kit, 1).read(html.toString());
+
+        assertTrue(readers.get() > 1);
+        assertSameDocument(single, parallel);
+    }
+
+    /*
+     * Tags the parser does not know are renamed in a DTD all the parsers
+     * share, so such a document is parsed as a single chunk.
+     */
+    @Test
+    public void unknownTagsMatchSingleParse() throws Exception {
+        StringBuilder html = new StringBuilder("<html><body>");
+        for (int i = 0; html.length() < 2 * ParallelHTMLParser.MIN_PARALLEL_LENGTH; i++) {
+            html.append("<p>texto <custom-tag data-i=\"").append(i).append("\">propio</custom-tag> ")
+                    .append("<!-- nota --> fin</p>\n");
+        }
+        html.append("</body></html>\n");
+
+        AtomicInteger readers = new AtomicInteger();
+        HTMLDocument parallel = new ParallelHTMLParser(kit, 4).read(html.toString(), reader -> {
+            readers.incrementAndGet();
+            return reader;
+        });
+        HTMLDocument single = new ParallelHTMLParser(kit, 1).read(html.toString());
+
+        assertEquals(1, readers.get());
+        assertSameDocument(single, parallel);
+    }
+
+    @Test
+    public void readerMatchesString() throws Exception {
+        String html = "<html><body><p>uno</p><pre>\n dos\n</pre><!-- tres --></body></html>\n";
+        HTMLDocument fromString = new ParallelHTMLParser(kit, 4).read(html);
+        HTMLDocument fromReader;
+        try (Reader in = new StringReader(html)) {
+            fromReader = new ParallelHTMLParser(kit, 4).read(in, -1, reader -> reader);
+        }
+        assertSameDocument(fromString, fromReader);
+    }
+
+    private static void assertSameDocument(HTMLDocument expected, HTMLDocument actual) throws BadLocationException, IOException {
+        assertEquals(expected.getText(0, expected.getLength() + 1), actual.getText(0, actual.getLength() + 1));
+        assertEquals(tree(expected.getDefaultRootElement()), tree(actual.getDefaultRootElement()));
+        assertEquals(expected.getProperty(Document.TitleProperty), actual.getProperty(Document.TitleProperty));
+        assertEquals(String.valueOf(expected.getProperty(HTMLDocument.AdditionalComments)),
+                String.valueOf(actual.getProperty(HTMLDocument.AdditionalComments)));
+    }
+
+    /*
+     * Every element in preorder with its range and its attributes, without
+     * the resolve parent, sorted by name.
+     */
+    private static String tree(Element elem) {
+        StringBuilder out = new StringBuilder();
+        appendTree(out, elem, 0);
+        return out.toString();
+    }
+
+    private static void appendTree(StringBuilder out, Element elem, int depth) {
+        out.append("  ".repeat(depth)).append(elem.getName())
+                .append(" [").append(elem.getStartOffset()).append(", ").append(elem.getEndOffset()).append(") ")
+                .append(attributes(elem.getAttributes())).append('\n');
+        for (int i = 0; i < elem.getElementCount(); i++) {
+            appendTree(out, elem.getElement(i), depth + 1);
+        }
+    }
+
+    private static Map<String, String> attributes(AttributeSet attrs) {
+        Map<String, String> sorted = new TreeMap<>();
+        for (Enumeration<?> names = attrs.getAttributeNames(); names.hasMoreElements();) {
+            Object name = names.nextElement();
+            if (name != StyleConstants.ResolveAttribute) {
+                Object value = attrs.getAttribute(name);
+                sorted.put(String.valueOf(name), value instanceof AttributeSet set
+                        ? attributes(set).toString() : String.valueOf(value));
+            }
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,61 @@
+package richtextfield.io;
+
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class UndoSpillFileTest {
+
+    private final UndoSpillFile spillFile = new UndoSpillFile();
+
+    @After
+    public void tearDown() {
+        spillFile.close();
+    }
+
+    @Test
+    public void readsTheValuesWritten() throws Exception {
+        UndoSpillFile.Entry first = spillFile.write(List.of("uno", "dós"));
+        UndoSpillFile.Entry second = spillFile.write(List.of("x".repeat(10000)));
+        assertEquals(List.of("uno", "dós"), spillFile.read(first));
+        assertEquals(List.of("x".repeat(10000)), spillFile.read(second));
+        assertEquals(2, spillFile.size());
+        assertEquals(first.length() + second.length(), spillFile.getBytes());
+    }
+
+    /*
+     * The history frees its oldest entries first, their space must be used
+     * again instead of growing the file.
+     */
+    @Test
+    public void reusesTheSpaceOfFreedEntries() throws Exception {
+        UndoSpillFile.Entry first = spillFile.write(List.of("a".repeat(1000)));
+        UndoSpillFile.Entry second = spillFile.write(List.of("b".repeat(1000)));
+        UndoSpillFile.Entry third = spillFile.write(List.of("c".repeat(1000)));
+
+        spillFile.free(first);
+        spillFile.free(second);
+        // Fits in the merged space of the first two.
+        UndoSpillFile.Entry large = spillFile.write(List.of("d".repeat(1500)));
+        assertEquals(first.position(), large.position());
+        UndoSpillFile.Entry small = spillFile.write(List.of("e".repeat(400)));
+        assertEquals(large.position() + large.length(), small.position());
+
+        // The end of the file is truncated with the space left before it.
+        spillFile.free(third);
+        UndoSpillFile.Entry last = spillFile.write(List.of("f"));
+        assertEquals(small.position() + small.length(), last.position());
+
+        assertEquals(List.of("d".repeat(1500)), spillFile.read(large));
+        assertEquals(List.of("e".repeat(400)), spillFile.read(small));
+        assertEquals(List.of("f"), spillFile.read(last));
+
+        spillFile.free(large);
+        spillFile.free(small);
+        spillFile.free(last);
+        assertEquals(0, spillFile.getBytes());
+        assertEquals(0, spillFile.write(List.of("g")).position());
+    }
+}